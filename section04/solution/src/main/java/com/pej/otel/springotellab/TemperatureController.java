@@ -6,19 +6,30 @@ import java.util.Optional;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
+import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 public class TemperatureController {
     private static final Logger logger = LoggerFactory.getLogger(TemperatureController.class);
+
+    // Span of a streamed simulation, ended by streamRejected() when the stream never starts
+    private static final String STREAM_SPAN = TemperatureController.class.getName() + ".streamSpan";
+
     private final Tracer tracer;
 
     @Autowired
@@ -29,6 +40,14 @@ public class TemperatureController {
     @Autowired
     Thermometer thermometer;
 
+    // Size of the buffer used to stream the readings, this is the memory bound of a streamed simulation
+    @Value("${simulation.streamBufferSize:8192}")
+    private int streamBufferSize;
+
+    // Largest simulation materialized in memory by a single request, the streamed simulations are not limited
+    @Value("${simulation.maxMeasurements:1000000}")
+    private int maxMeasurements;
+
     @GetMapping("/simulateTemperature")
     public List<Integer> index(@RequestParam("location") Optional<String> location,
                                @RequestParam("measurements") Optional<Integer> measurements) {
@@ -41,6 +60,7 @@ public class TemperatureController {
             if (measurements.isEmpty()) {
                 throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing measurements parameter", null);
             }
+            checkMaxMeasurements(measurements.get());
 
             thermometer.setTemp(20, 35);
             List<Integer> result = thermometer.simulateTemperature(measurements.get());
@@ -52,10 +72,138 @@ public class TemperatureController {
             }
             return result;
         } catch (Throwable t) {
-            span.recordException(t);
+            ExceptionRecorder.record(span, t);
+            throw t;
+        } finally {
+            span.end();
+        }
+    }
+
+    // Same simulation returned as a primitive array, Jackson writes it without boxing the readings
+    @GetMapping("/simulateTemperature/array")
+    public int[] indexArray(@RequestParam("location") Optional<String> location,
+                            @RequestParam("measurements") Optional<Integer> measurements) {
+
+        Span span = tracer.spanBuilder("temperatureSimulation").startSpan();
+        span.setAttribute("span.type", "web");
+        span.setAttribute("resource.name", "GET /simulateTemperature/array");
+        try (Scope scope = span.makeCurrent()) {
+
+            if (measurements.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing measurements parameter", null);
+            }
+            checkMaxMeasurements(measurements.get());
+
+            thermometer.setTemp(20, 35);
+            int[] result = thermometer.simulateTemperatureArray(measurements.get());
+
+            if (location.isPresent()) {
+                logger.info("Temperature simulation for {}: {} measurements", location.get(), result.length);
+            } else {
+                logger.info("Temperature simulation for an unspecified location: {} measurements", result.length);
+            }
+            return result;
+        } catch (Throwable t) {
+            ExceptionRecorder.record(span, t);
+            throw t;
+        } finally {
+            span.end();
+        }
+    }
+
+    // Same as /simulateTemperature/array but the measurements are split across the fork/join common pool
+    @GetMapping("/simulateTemperature/parallel")
+    public int[] indexParallel(@RequestParam("location") Optional<String> location,
+                               @RequestParam("measurements") Optional<Integer> measurements) {
+
+        Span span = tracer.spanBuilder("temperatureSimulation").startSpan();
+        span.setAttribute("span.type", "web");
+        span.setAttribute("resource.name", "GET /simulateTemperature/parallel");
+        try (Scope scope = span.makeCurrent()) {
+
+            if (measurements.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing measurements parameter", null);
+            }
+            checkMaxMeasurements(measurements.get());
+
+            thermometer.setTemp(20, 35);
+            int[] result = thermometer.simulateTemperatureParallel(measurements.get());
+
+            if (location.isPresent()) {
+                logger.info("Temperature simulation for {}: {} measurements", location.get(), result.length);
+            } else {
+                logger.info("Temperature simulation for an unspecified location: {} measurements", result.length);
+            }
+            return result;
+        } catch (Throwable t) {
+            ExceptionRecorder.record(span, t);
             throw t;
         } finally {
             span.end();
         }
     }
+
+    // Readings are written as newline delimited JSON while they are produced instead of being materialized first.
+    // The temperatureSimulation span stays open until the last reading has been written.
+    // The stream is written by the Spring MVC task executor and limited by spring.mvc.async.request-timeout.
+    @GetMapping(value = "/simulateTemperature/stream", produces = "application/x-ndjson")
+    public StreamingResponseBody indexStream(@RequestParam("location") Optional<String> location,
+                                             @RequestParam("measurements") Optional<Integer> measurements,
+                                             HttpServletRequest request) {
+
+        Span span = tracer.spanBuilder("temperatureSimulation").startSpan();
+        span.setAttribute("span.type", "web");
+        span.setAttribute("resource.name", "GET /simulateTemperature/stream");
+        try (Scope scope = span.makeCurrent()) {
+
+            if (measurements.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing measurements parameter", null);
+            }
+
+            thermometer.setTemp(20, 35);
+            Context context = Context.current();
+            request.setAttribute(STREAM_SPAN, span);
+
+            return outputStream -> {
+                TemperatureStreamWriter writer = new TemperatureStreamWriter(outputStream, streamBufferSize);
+                try (Scope streamScope = context.makeCurrent()) {
+                    thermometer.simulateTemperature(measurements.get(), writer);
+                    writer.flush();
+
+                    if (location.isPresent()) {
+                        logger.info("Temperature simulation for {}: {} measurements streamed", location.get(), writer.getCount());
+                    } else {
+                        logger.info("Temperature simulation for an unspecified location: {} measurements streamed", writer.getCount());
+                    }
+                } catch (Throwable t) {
+                    ExceptionRecorder.record(span, t);
+                    throw t;
+                } finally {
+                    span.setAttribute("temperature.readings", writer.getCount());
+                    span.end();
+                }
+            };
+        } catch (Throwable t) {
+            ExceptionRecorder.record(span, t);
+            span.end();
+            throw t;
+        }
+    }
+
+    private void checkMaxMeasurements(int measurements) {
+        if (measurements > maxMeasurements) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "At most " + maxMeasurements + " measurements, use /simulateTemperature/stream for more", null);
+        }
+    }
+
+    // Every thread of the task executor is busy and its queue is full, see spring.task.execution.pool
+    @ExceptionHandler(TaskRejectedException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public void streamRejected(TaskRejectedException e, HttpServletRequest request) {
+        if (request.getAttribute(STREAM_SPAN) instanceof Span span) {
+            ExceptionRecorder.record(span, e);
+            span.end();
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package com.pej.otel.springotellab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes readings as newline delimited JSON (one integer per line) through a fixed size buffer.
+ * The buffer is flushed to the client every time it fills up, so the memory used by a stream
+ * doesn't depend on the number of measurements.
+ */
+class TemperatureStreamWriter implements IntConsumer {
+
+    // "-2147483648\n"
+    static final int MAX_READING_LENGTH = 12;
+
+    private final OutputStream outputStream;
+    private final byte[] buffer;
+    private int position;
+    private long count;
+
+    TemperatureStreamWriter(OutputStream outputStream, int bufferSize) {
+        this.outputStream = outputStream;
+        this.buffer = new byte[Math.max(bufferSize, MAX_READING_LENGTH)];
+    }
+
+    @Override
+    public void accept(int temperature) {
+        if (buffer.length - position < MAX_READING_LENGTH) {
+            flush();
+        }
+        long value = temperature;
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        reverse(start, position - 1);
+        buffer[position++] = '\n';
+        count++;
+    }
+
+    public void flush() {
+        try {
+            outputStream.write(buffer, 0, position);
+            outputStream.flush();
+            position = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    private void reverse(int from, int to) {
+        while (from < to) {
+            byte tmp = buffer[from];
+            buffer[from++] = buffer[to];
+            buffer[to--] = tmp;
+        }
+    }
+}
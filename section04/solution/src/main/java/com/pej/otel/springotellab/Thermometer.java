@@ -3,13 +3,18 @@ package com.pej.otel.springotellab;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
 
 @Component
 public class Thermometer {
@@ -19,6 +24,9 @@ public class Thermometer {
 
     private final Tracer tracer;
 
+    // Maximum number of measurements simulated by a single fork/join task
+    @Value("${simulation.parallelThreshold:10000}")
+    private int parallelThreshold = 10000;
 
     @Autowired
     Thermometer(OpenTelemetry openTelemetry) {
@@ -38,6 +46,44 @@ public class Thermometer {
         }
     }
 
+    public int[] simulateTemperatureArray(int measurements) {
+        int[] temperatures = new int[Math.max(measurements, 0)];
+        Span parentSpan = tracer.spanBuilder("simulateTemperature").startSpan();
+        try (Scope scope = parentSpan.makeCurrent()) {
+            for (int i = 0; i < temperatures.length; i++) {
+                temperatures[i] = this.measureOnce();
+            }
+            return temperatures;
+        } finally {
+            parentSpan.end();
+        }
+    }
+
+    public int simulateTemperature(int measurements, IntConsumer consumer) {
+        Span parentSpan = tracer.spanBuilder("simulateTemperature").startSpan();
+        try (Scope scope = parentSpan.makeCurrent()) {
+            int count = 0;
+            for (; count < measurements; count++) {
+                consumer.accept(this.measureOnce());
+            }
+            return count;
+        } finally {
+            parentSpan.end();
+        }
+    }
+
+    public int[] simulateTemperatureParallel(int measurements) {
+        int[] temperatures = new int[Math.max(measurements, 0)];
+        Span parentSpan = tracer.spanBuilder("simulateTemperature").startSpan();
+        try (Scope scope = parentSpan.makeCurrent()) {
+            // Each chunk writes at its own offset, so the result order doesn't depend on which worker ran it
+            ForkJoinPool.commonPool().invoke(new SimulateChunkTask(temperatures, 0, temperatures.length, Context.current()));
+            return temperatures;
+        } finally {
+            parentSpan.end();
+        }
+    }
+
     private int measureOnce() {
         Span childSpan = tracer.spanBuilder("measureOnce").startSpan();
         try {
@@ -51,4 +97,43 @@ public class Thermometer {
         this.minTemp = minTemp;
         this.maxTemp = maxTemp;
     }
+
+    private class SimulateChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] temperatures;
+        private final int from;
+        private final int to;
+        // Context of simulateTemperature, captured on the calling thread since tasks can be stolen by any worker
+        private final Context context;
+
+        SimulateChunkTask(int[] temperatures, int from, int to, Context context) {
+            this.temperatures = temperatures;
+            this.from = from;
+            this.to = to;
+            this.context = context;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > Math.max(parallelThreshold, 1)) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SimulateChunkTask(temperatures, from, middle, context),
+                        new SimulateChunkTask(temperatures, middle, to, context));
+                return;
+            }
+
+            Span chunkSpan = tracer.spanBuilder("simulateChunk").setParent(context).startSpan();
+            chunkSpan.setAttribute("chunk.offset", from);
+            chunkSpan.setAttribute("chunk.size", to - from);
+            try (Scope scope = chunkSpan.makeCurrent()) {
+                for (int i = from; i < to; i++) {
+                    temperatures[i] = measureOnce();
+                }
+            } finally {
+                chunkSpan.end();
+            }
+        }
+    }
 }
@@ -2,6 +2,7 @@ plugins {
 	java
 	id("org.springframework.boot") version "3.2.2"
 	id("io.spring.dependency-management") version "1.1.4"
+	id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.pej.otel"
@@ -22,6 +23,7 @@ dependencies {
 	implementation("io.opentelemetry:opentelemetry-exporter-logging")
 	implementation("io.opentelemetry.semconv:opentelemetry-semconv:1.23.1-alpha")
 	implementation("io.opentelemetry:opentelemetry-exporter-otlp:1.35.0")
+	jmh("org.springframework:spring-test")
 }
 
 dependencyManagement {
@@ -30,6 +32,13 @@ dependencyManagement {
 	}
 }
 
+jmh {
+	jmhVersion.set("1.37")
+	profilers.add("gc")
+	resultFormat.set("JSON")
+	resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
 tasks.named("jar") {
 	enabled = false
 }
@@ -0,0 +1,96 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import jakarta.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the extraction previously done in {@link CalculatorController} (propagators looked up from
+ * GlobalOpenTelemetry for every request) with {@link TracingFilter#extract(HttpServletRequest)}, which uses the
+ * propagator of the injected OpenTelemetry. Both run on several threads to reproduce a high request rate.
+ *
+ * Run with {@code gradle jmh}, {@code gc.alloc.rate.norm} gives the bytes allocated per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ContextExtractionBenchmark {
+
+    // The getter used by CalculatorController before TracingFilter
+    private static final TextMapGetter<HttpServletRequest> globalGetter = new TextMapGetter<>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public Iterable<String> keys(HttpServletRequest carrier) {
+            return (Iterable<String>) carrier.getHeaderNames();
+        }
+
+        @Override
+        public String get(HttpServletRequest carrier, String key) {
+            return carrier.getHeader(key);
+        }
+    };
+
+    private SdkTracerProvider sdkTracerProvider;
+
+    private TracingFilter tracingFilter;
+
+    private MockHttpServletRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sdkTracerProvider = SdkTracerProvider.builder().build();
+        OpenTelemetrySdk openTelemetry = OpenTelemetrySdk.builder()
+                .setTracerProvider(sdkTracerProvider)
+                .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                .build();
+        GlobalOpenTelemetry.resetForTest();
+        GlobalOpenTelemetry.set(openTelemetry);
+
+        tracingFilter = new TracingFilter(openTelemetry);
+        request = new MockHttpServletRequest("GET", "/measureTemperature");
+        request.addHeader("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        request.addHeader("tracestate", "dd=s:1;o:rum,congo=t61rcWkgMzE");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sdkTracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+        GlobalOpenTelemetry.resetForTest();
+    }
+
+    @Benchmark
+    public Context globalPropagators() {
+        return GlobalOpenTelemetry.getPropagators().getTextMapPropagator()
+                .extract(Context.current(), request, globalGetter);
+    }
+
+    @Benchmark
+    public Context tracingFilter() {
+        return tracingFilter.extract(request);
+    }
+}
@@ -8,6 +8,7 @@ import io.opentelemetry.sdk.OpenTelemetrySdk;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.semconv.ResourceAttributes;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.Banner;
@@ -25,6 +26,12 @@ public class CalculatorApplication {
         app.run(args);
     }
 
+    // Extracts the propagated context and creates the SERVER span of every request
+    @Bean
+    public TracingFilter tracingFilter(OpenTelemetry openTelemetry) {
+        return new TracingFilter(openTelemetry);
+    }
+
     @Bean
     public OpenTelemetry openTelemetry() {
 
@@ -32,7 +39,9 @@ public class CalculatorApplication {
 
         OtlpGrpcSpanExporter otlpGrpcSpanExporter = OtlpGrpcSpanExporter.builder().setTimeout(2, TimeUnit.SECONDS).build();
 
+        // Records the spans of the traces sampled by the temperature simulator, and only those
         SdkTracerProvider setTracerProvider = SdkTracerProvider.builder()
+                .setSampler(Sampler.parentBased(Sampler.alwaysOn()))
                 .addSpanProcessor(BatchSpanProcessor.builder(otlpGrpcSpanExporter).setScheduleDelay(100, TimeUnit.MILLISECONDS).build())
                 .setResource(resource)
                 .build();
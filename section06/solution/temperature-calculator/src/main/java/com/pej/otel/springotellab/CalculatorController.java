@@ -1,18 +1,18 @@
 package com.pej.otel.springotellab;
 
-import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
-import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
-import io.opentelemetry.context.propagation.TextMapGetter;
-import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 @RestController
 public class CalculatorController {
@@ -22,19 +22,9 @@ public class CalculatorController {
 
     private final Thermometer thermometer;
 
-    // TextMapGetter to extract context from HttpServletRequest
-    private static final TextMapGetter<HttpServletRequest> getter = new TextMapGetter<>() {
-        @Override
-        public Iterable<String> keys(HttpServletRequest carrier) {
-            return (Iterable<String>) carrier.getHeaderNames();
-        }
-
-        @Override
-        public String get(HttpServletRequest carrier, String key) {
-            return carrier.getHeader(key);
-        }
-    };
-
+    // Upper bound of the count parameter, the readings are allocated before the response is written
+    @Value("${thermometer.maxBatchSize:1000}")
+    private int maxBatchSize;
 
     @Autowired
     public CalculatorController(Thermometer thermometer, OpenTelemetry openTelemetry) {
@@ -43,15 +33,10 @@ public class CalculatorController {
 
     }
 
+    // The context propagated by the simulator is extracted by TracingFilter, whose SERVER span is the current one here
     @GetMapping("/measureTemperature")
-    public int measure(HttpServletRequest request) {
-        // Extract the context
-        Context context = GlobalOpenTelemetry.getPropagators().getTextMapPropagator()
-                .extract(Context.current(), request, getter);
-
-        // Start a new span as a child of the extracted context
+    public int measure() {
         Span span = tracer.spanBuilder("measure")
-                .setParent(context)
                 .startSpan();
 
 
@@ -63,4 +48,22 @@ public class CalculatorController {
         }
     }
 
+    // Returns count readings in one response so that callers don't pay a round trip per reading
+    @GetMapping("/measureTemperatures")
+    public int[] measureBatch(@RequestParam("count") int count) {
+        if (count < 1 || count > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "count must be between 1 and " + maxBatchSize, null);
+        }
+
+        Span span = tracer.spanBuilder("measureTemperatures")
+                .startSpan();
+        span.setAttribute("batch.size", count);
+
+        try (Scope scope = span.makeCurrent()) {
+            return thermometer.measure(count);
+        } finally {
+            span.end();
+        }
+    }
+
 }
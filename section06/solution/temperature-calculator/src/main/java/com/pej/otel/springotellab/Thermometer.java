@@ -17,4 +17,12 @@ public class Thermometer {
     public int measureOnce() {
         return ThreadLocalRandom.current().nextInt(this.minTemp, this.maxTemp + 1);
     }
+
+    public int[] measure(int count) {
+        int[] temperatures = new int[count];
+        for (int i = 0; i < temperatures.length; i++) {
+            temperatures[i] = measureOnce();
+        }
+        return temperatures;
+    }
 }
@@ -0,0 +1,87 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.semconv.SemanticAttributes;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Extracts the context propagated by the caller once per request and starts a SERVER span with it as parent.
+ * The span is current while the request is handled, so the spans created by the controllers are its children.
+ *
+ * The span is named after the method and the route template matched by Spring MVC, never the raw path: every
+ * distinct path would be a distinct span name for the backends grouping by name. The path is only in {@code url.path}.
+ */
+public class TracingFilter extends OncePerRequestFilter {
+
+    // Propagators such as W3CTraceContextPropagator only call get(), keys() only allocates for the ones iterating the headers
+    static final TextMapGetter<HttpServletRequest> getter = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(HttpServletRequest carrier) {
+            return Collections.list(carrier.getHeaderNames());
+        }
+
+        @Override
+        public String get(HttpServletRequest carrier, String key) {
+            return carrier.getHeader(key);
+        }
+    };
+
+    private final Tracer tracer;
+
+    private final TextMapPropagator propagator;
+
+    public TracingFilter(OpenTelemetry openTelemetry) {
+        this.tracer = openTelemetry.getTracer(TracingFilter.class.getName(), "0.1.0");
+        this.propagator = openTelemetry.getPropagators().getTextMapPropagator();
+    }
+
+    Context extract(HttpServletRequest request) {
+        return propagator.extract(Context.current(), request, getter);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String method = request.getMethod();
+        // The route is only known once the request is dispatched, see updateName() below
+        Span span = tracer.spanBuilder(method)
+                .setParent(extract(request))
+                .setSpanKind(SpanKind.SERVER)
+                .startSpan();
+        span.setAttribute(SemanticAttributes.HTTP_REQUEST_METHOD, method);
+        span.setAttribute(SemanticAttributes.URL_PATH, request.getRequestURI());
+
+        try (Scope scope = span.makeCurrent()) {
+            filterChain.doFilter(request, response);
+            span.setAttribute(SemanticAttributes.HTTP_RESPONSE_STATUS_CODE, (long) response.getStatus());
+            if (response.getStatus() >= 500) {
+                span.setStatus(StatusCode.ERROR);
+            }
+        } catch (Throwable t) {
+            ExceptionRecorder.record(span, t);
+            throw t;
+        } finally {
+            Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            if (route != null) {
+                span.updateName(method + " " + route);
+                span.setAttribute(SemanticAttributes.HTTP_ROUTE, route.toString());
+            }
+            span.end();
+        }
+    }
+}
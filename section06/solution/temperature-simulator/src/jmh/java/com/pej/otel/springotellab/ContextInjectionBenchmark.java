@@ -0,0 +1,198 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per call cost of the trace context injection previously done in {@link Thermometer}
+ * (new HttpHeaders, setter and HttpEntity, propagators looked up from GlobalOpenTelemetry) with
+ * {@link TracingClientHttpRequestInterceptor}. No network call is made, the request execution is stubbed.
+ *
+ * With {@code sampler=off} the interceptor spans are not recorded, which isolates the cost of the injection.
+ * Run with {@code gradle jmh} and look at {@code gc.alloc.rate.norm} for the bytes allocated per call.
+ */
+@State(org.openjdk.jmh.annotations.Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContextInjectionBenchmark {
+
+    private static final URI uri = URI.create("http://localhost:8088/measureTemperature");
+
+    private static final byte[] emptyBody = new byte[0];
+
+    @Param({"off", "on"})
+    public String sampler;
+
+    private SdkTracerProvider sdkTracerProvider;
+
+    private TracingClientHttpRequestInterceptor interceptor;
+
+    private Span parentSpan;
+
+    private Context parentContext;
+
+    private final ClientHttpRequestExecution execution = (request, body) -> new StubResponse();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sdkTracerProvider = SdkTracerProvider.builder()
+                .setSampler("on".equals(sampler) ? Sampler.alwaysOn() : Sampler.alwaysOff())
+                .addSpanProcessor(BatchSpanProcessor.builder(new StubSpanExporter()).setScheduleDelay(100, TimeUnit.MILLISECONDS).build())
+                .build();
+        OpenTelemetrySdk openTelemetry = OpenTelemetrySdk.builder()
+                .setTracerProvider(sdkTracerProvider)
+                .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                .build();
+        GlobalOpenTelemetry.resetForTest();
+        GlobalOpenTelemetry.set(openTelemetry);
+
+        interceptor = new TracingClientHttpRequestInterceptor(openTelemetry);
+        parentSpan = openTelemetry.getTracer("benchmark").spanBuilder("simulateTemperature").startSpan();
+        parentContext = Context.root().with(parentSpan);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // Ended before the shutdown so the parent span is exported like the calls it contains
+        parentSpan.end();
+        sdkTracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+        GlobalOpenTelemetry.resetForTest();
+    }
+
+    @Benchmark
+    public ClientHttpResponse headersAndEntity() throws IOException {
+        try (Scope scope = parentContext.makeCurrent()) {
+            HttpHeaders headers = new HttpHeaders();
+            TextMapSetter<HttpHeaders> setter = HttpHeaders::set;
+            GlobalOpenTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), headers, setter);
+            HttpEntity<String> entity = new HttpEntity<>(headers);
+
+            // RestTemplate copies the entity headers into the request it creates
+            StubRequest request = new StubRequest();
+            request.getHeaders().putAll(entity.getHeaders());
+            return execution.execute(request, emptyBody);
+        }
+    }
+
+    @Benchmark
+    public ClientHttpResponse interceptor() throws IOException {
+        try (Scope scope = parentContext.makeCurrent()) {
+            return interceptor.intercept(new StubRequest(), emptyBody, execution);
+        }
+    }
+
+    // Stands for the request created by the RestTemplate for each call
+    static class StubRequest implements HttpRequest {
+
+        private final HttpHeaders headers = new HttpHeaders();
+
+        @Override
+        public HttpMethod getMethod() {
+            return HttpMethod.GET;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        // Only part of HttpRequest from Spring Framework 6.2
+        public Map<String, Object> getAttributes() {
+            return Collections.emptyMap();
+        }
+    }
+
+    static class StubResponse implements ClientHttpResponse {
+
+        @Override
+        public HttpStatusCode getStatusCode() {
+            return HttpStatus.OK;
+        }
+
+        @Override
+        public String getStatusText() {
+            return "OK";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(emptyBody);
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return HttpHeaders.EMPTY;
+        }
+    }
+
+    static class StubSpanExporter implements SpanExporter {
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
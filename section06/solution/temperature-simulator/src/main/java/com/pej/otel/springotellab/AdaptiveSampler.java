@@ -0,0 +1,135 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Samples the root spans with a probability adjusted to export about {@code targetSpansPerSecond} spans per second.
+ * Every {@code updateInterval}, the probability is recomputed from the rate of root spans and from the number of spans
+ * recorded per sampled trace, which varies with the number of measurements of the requests.
+ *
+ * The spans of the temperature calculator count towards the target too: they are not seen here, so every CLIENT span
+ * is counted with the {@code remoteSpansPerCall} spans the called service records for it.
+ *
+ * It is meant to decide for the root spans only: wrap it with {@link Sampler#parentBased(Sampler)} so the children,
+ * including the ones created by the temperature calculator, follow the decision of their parent. The processor
+ * returned by {@link #spanCounter()} must be registered to count the recorded spans.
+ */
+public class AdaptiveSampler implements Sampler {
+
+    // Weight of the last interval in the smoothed spans per trace
+    private static final double SMOOTHING = 0.3;
+
+    private final double targetSpansPerSecond;
+
+    private final double minProbability;
+
+    private final long updateIntervalNanos;
+
+    private final int remoteSpansPerCall;
+
+    private final LongAdder rootSpans = new LongAdder();
+
+    private final LongAdder sampledRootSpans = new LongAdder();
+
+    private final LongAdder recordedSpans = new LongAdder();
+
+    private final AtomicLong intervalStartNanos = new AtomicLong(System.nanoTime());
+
+    private volatile double spansPerTrace = 1;
+
+    private volatile double probability = 1;
+
+    public AdaptiveSampler(double targetSpansPerSecond, double minProbability, long updateIntervalMillis,
+                           int remoteSpansPerCall, Meter meter) {
+        this.targetSpansPerSecond = targetSpansPerSecond;
+        this.minProbability = minProbability;
+        this.updateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(updateIntervalMillis);
+        this.remoteSpansPerCall = remoteSpansPerCall;
+        meter.gaugeBuilder("sampler_probability")
+                .setDescription("Probability used by the adaptive sampler for the root spans")
+                .setUnit("1")
+                .buildWithCallback(measurement -> measurement.record(probability));
+    }
+
+    @Override
+    public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
+                                       Attributes attributes, List<LinkData> parentLinks) {
+        maybeUpdate();
+        rootSpans.increment();
+        if (ThreadLocalRandom.current().nextDouble() < probability) {
+            sampledRootSpans.increment();
+            return SamplingResult.recordAndSample();
+        }
+        return SamplingResult.drop();
+    }
+
+    @Override
+    public String getDescription() {
+        return "AdaptiveSampler{targetSpansPerSecond=" + targetSpansPerSecond + "}";
+    }
+
+    // Counts the spans recorded, only the spans of the sampled traces reach the span processors
+    public SpanProcessor spanCounter() {
+        return new SpanProcessor() {
+            @Override
+            public void onStart(Context parentContext, ReadWriteSpan span) {
+                recordedSpans.add(span.getKind() == SpanKind.CLIENT ? 1 + remoteSpansPerCall : 1);
+            }
+
+            @Override
+            public boolean isStartRequired() {
+                return true;
+            }
+
+            @Override
+            public void onEnd(ReadableSpan span) {
+            }
+
+            @Override
+            public boolean isEndRequired() {
+                return false;
+            }
+        };
+    }
+
+    // The thread crossing the end of the interval recomputes the probability, the others keep sampling
+    private void maybeUpdate() {
+        long start = intervalStartNanos.get();
+        long now = System.nanoTime();
+        long elapsed = now - start;
+        if (elapsed < updateIntervalNanos || !intervalStartNanos.compareAndSet(start, now)) {
+            return;
+        }
+
+        double seconds = elapsed / 1e9;
+        double roots = rootSpans.sumThenReset();
+        double sampled = sampledRootSpans.sumThenReset();
+        double spans = recordedSpans.sumThenReset();
+
+        // Without sampled trace in the interval, the previous estimate is kept
+        if (sampled > 0) {
+            spansPerTrace = Math.max(1, (1 - SMOOTHING) * spansPerTrace + SMOOTHING * (spans / sampled));
+        }
+        if (roots == 0) {
+            probability = 1;
+            return;
+        }
+        double targetTracesPerSecond = targetSpansPerSecond / spansPerTrace;
+        probability = Math.max(minProbability, Math.min(1, targetTracesPerSecond / (roots / seconds)));
+    }
+}
@@ -0,0 +1,135 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records exceptions on spans as {@code exception} events, like {@code Span.recordException}, but cheaper during
+ * an error storm:
+ * - the stack trace is limited to MAX_STACK_DEPTH frames per exception of the cause chain.
+ * - the first occurrence of a stack trace is recorded in full, the identical ones within DEDUP_WINDOW only carry its
+ *   hash and a reference to the span holding the full stack trace, plus the number of suppressed stack traces.
+ * The span also gets the ERROR status, so the helper replaces both {@code recordException} and {@code setStatus}.
+ */
+public final class ExceptionRecorder {
+
+    private static final int MAX_STACK_DEPTH = 20;
+
+    private static final int MAX_CAUSES = 3;
+
+    private static final long DEDUP_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // Bounds the memory used by the distinct stack traces seen in the window
+    private static final int MAX_TRACKED = 1000;
+
+    private static final AttributeKey<String> EXCEPTION_TYPE = AttributeKey.stringKey("exception.type");
+    private static final AttributeKey<String> EXCEPTION_MESSAGE = AttributeKey.stringKey("exception.message");
+    private static final AttributeKey<String> EXCEPTION_STACKTRACE = AttributeKey.stringKey("exception.stacktrace");
+    private static final AttributeKey<String> EXCEPTION_HASH = AttributeKey.stringKey("exception.hash");
+    private static final AttributeKey<String> EXCEPTION_REFERENCE = AttributeKey.stringKey("exception.reference");
+    private static final AttributeKey<Long> EXCEPTION_SUPPRESSED = AttributeKey.longKey("exception.suppressed_count");
+
+    private static final Map<Long, Occurrence> occurrences = new ConcurrentHashMap<>();
+
+    private ExceptionRecorder() {
+    }
+
+    public static void record(Span span, Throwable throwable) {
+        if (!span.isRecording()) {
+            return;
+        }
+
+        span.setStatus(StatusCode.ERROR);
+        long hash = hash(throwable);
+        String hashHex = Long.toHexString(hash);
+        long now = System.nanoTime();
+        Occurrence first = occurrences.get(hash);
+        if (first != null && now - first.nanoTime < DEDUP_WINDOW_NANOS) {
+            span.addEvent("exception", attributes(throwable)
+                    .put(EXCEPTION_HASH, hashHex)
+                    .put(EXCEPTION_REFERENCE, first.reference)
+                    .put(EXCEPTION_SUPPRESSED, first.suppressed.incrementAndGet())
+                    .build());
+            return;
+        }
+
+        if (occurrences.size() >= MAX_TRACKED) {
+            occurrences.values().removeIf(occurrence -> now - occurrence.nanoTime >= DEDUP_WINDOW_NANOS);
+        }
+        if (occurrences.size() < MAX_TRACKED) {
+            SpanContext spanContext = span.getSpanContext();
+            occurrences.put(hash, new Occurrence(now, spanContext.getTraceId() + "-" + spanContext.getSpanId()));
+        }
+        span.addEvent("exception", attributes(throwable)
+                .put(EXCEPTION_STACKTRACE, stackTrace(throwable))
+                .put(EXCEPTION_HASH, hashHex)
+                .build());
+    }
+
+    // Like Span.recordException, the message is left out when the exception has none
+    private static AttributesBuilder attributes(Throwable throwable) {
+        AttributesBuilder attributes = Attributes.builder().put(EXCEPTION_TYPE, throwable.getClass().getName());
+        if (throwable.getMessage() != null) {
+            attributes.put(EXCEPTION_MESSAGE, throwable.getMessage());
+        }
+        return attributes;
+    }
+
+    // Covers the types and frames of the cause chain but not the messages, which often contain ids
+    private static long hash(Throwable throwable) {
+        long hash = 17;
+        int causes = 0;
+        for (Throwable current = throwable; current != null && causes <= MAX_CAUSES; current = current.getCause(), causes++) {
+            hash = 31 * hash + current.getClass().getName().hashCode();
+            StackTraceElement[] frames = current.getStackTrace();
+            for (int i = 0; i < Math.min(frames.length, MAX_STACK_DEPTH); i++) {
+                hash = 31 * hash + frames[i].hashCode();
+            }
+        }
+        return hash;
+    }
+
+    private static String stackTrace(Throwable throwable) {
+        StringBuilder builder = new StringBuilder(1024);
+        int causes = 0;
+        for (Throwable current = throwable; current != null && causes <= MAX_CAUSES; current = current.getCause(), causes++) {
+            if (current != throwable) {
+                builder.append("Caused by: ");
+            }
+            builder.append(current).append('\n');
+            StackTraceElement[] frames = current.getStackTrace();
+            int depth = Math.min(frames.length, MAX_STACK_DEPTH);
+            for (int i = 0; i < depth; i++) {
+                builder.append("\tat ").append(frames[i]).append('\n');
+            }
+            if (frames.length > depth) {
+                builder.append("\t... ").append(frames.length - depth).append(" more\n");
+            }
+        }
+        return builder.toString();
+    }
+
+    private static final class Occurrence {
+
+        private final long nanoTime;
+
+        // Trace and span ids of the span holding the full stack trace
+        private final String reference;
+
+        private final AtomicLong suppressed = new AtomicLong();
+
+        Occurrence(long nanoTime, String reference) {
+            this.nanoTime = nanoTime;
+            this.reference = reference;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
+import org.apache.hc.client5.http.io.LeaseRequest;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.Timeout;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connection pool used to call the temperature calculator. It reports the number of leased, pending and available
+ * connections along with the time spent waiting for a connection.
+ */
+public class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private static final AttributeKey<String> STATE = AttributeKey.stringKey("state");
+    private static final Attributes LEASED = Attributes.of(STATE, "leased");
+    private static final Attributes PENDING = Attributes.of(STATE, "pending");
+    private static final Attributes AVAILABLE = Attributes.of(STATE, "available");
+
+    private final DoubleHistogram acquireTime;
+
+    public InstrumentedConnectionManager(Meter meter) {
+        meter.gaugeBuilder("calculator_pool_connections")
+                .setDescription("Connections of the pool used to call the temperature calculator, by state")
+                .setUnit("1")
+                .ofLongs()
+                .buildWithCallback(measurement -> {
+                    PoolStats stats = getTotalStats();
+                    measurement.record(stats.getLeased(), LEASED);
+                    measurement.record(stats.getPending(), PENDING);
+                    measurement.record(stats.getAvailable(), AVAILABLE);
+                });
+        this.acquireTime = meter.histogramBuilder("calculator_pool_acquire_time")
+                .setDescription("Time spent waiting for a connection to the temperature calculator")
+                .setUnit("ms")
+                .build();
+    }
+
+    @Override
+    public LeaseRequest lease(String id, HttpRoute route, Timeout requestTimeout, Object state) {
+        long start = System.nanoTime();
+        LeaseRequest leaseRequest = super.lease(id, route, requestTimeout, state);
+        return new LeaseRequest() {
+            @Override
+            public ConnectionEndpoint get(Timeout timeout) throws InterruptedException, ExecutionException, TimeoutException {
+                try {
+                    return leaseRequest.get(timeout);
+                } finally {
+                    acquireTime.record((System.nanoTime() - start) / 1_000_000.0);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return leaseRequest.cancel();
+            }
+        };
+    }
+}
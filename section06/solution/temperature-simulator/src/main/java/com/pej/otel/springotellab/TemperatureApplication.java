@@ -1,21 +1,37 @@
 package com.pej.otel.springotellab;
 
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
 import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.exporter.otlp.metrics.OtlpGrpcMetricExporter;
 import io.opentelemetry.exporter.otlp.trace.OtlpGrpcSpanExporter;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.semconv.ResourceAttributes;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.util.TimeValue;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.Banner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
@@ -27,25 +43,105 @@ public class TemperatureApplication {
         app.run(args);
     }
 
+    // Pooled client with keep-alive for the calls to the temperature calculator
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient calculatorHttpClient(OpenTelemetry openTelemetry,
+                                                    @Value("${calculator.pool.maxTotal:50}") int maxTotal,
+                                                    @Value("${calculator.pool.maxPerRoute:20}") int maxPerRoute,
+                                                    @Value("${calculator.pool.keepAlive:30}") long keepAliveSeconds,
+                                                    @Value("${calculator.connectTimeout:1000}") long connectTimeoutMillis,
+                                                    @Value("${calculator.readTimeout:2000}") long readTimeoutMillis) {
+
+        InstrumentedConnectionManager connectionManager = new InstrumentedConnectionManager(openTelemetry.getMeter("CalculatorClientMeter"));
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .setSocketTimeout((int) readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .setTimeToLive(TimeValue.ofSeconds(keepAliveSeconds))
+                .build());
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> TimeValue.ofSeconds(keepAliveSeconds))
+                .evictIdleConnections(TimeValue.ofSeconds(keepAliveSeconds))
+                .evictExpiredConnections()
+                .build();
+    }
+
+    // Runs the calls to the temperature calculator, at most calculator.concurrency at a time. At most
+    // calculator.queueSize calls wait for a thread, the next ones are rejected and the request fails with a 503.
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService calculatorExecutor(OpenTelemetry openTelemetry, @Value("${calculator.concurrency:1}") int concurrency,
+                                              @Value("${calculator.queueSize:100}") int queueSize) {
+        // The calls of a single request may all wait while the threads finish the previous ones
+        if (queueSize < concurrency) {
+            throw new IllegalArgumentException("calculator.queueSize must be at least calculator.concurrency");
+        }
+        Meter meter = openTelemetry.getMeter("CalculatorClientMeter");
+        LongCounter rejectedCalls = meter.counterBuilder("calculator_calls_rejected")
+                .setDescription("Calls to the temperature calculator rejected because the queue was full")
+                .setUnit("1")
+                .build();
+
+        ThreadPoolExecutor.AbortPolicy abortPolicy = new ThreadPoolExecutor.AbortPolicy();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), (task, rejectingExecutor) -> {
+                    rejectedCalls.add(1);
+                    abortPolicy.rejectedExecution(task, rejectingExecutor);
+                });
+
+        meter.gaugeBuilder("calculator_calls_in_flight")
+                .setDescription("Calls to the temperature calculator being executed")
+                .setUnit("1")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(executor.getActiveCount()));
+        meter.gaugeBuilder("calculator_calls_queued")
+                .setDescription("Calls to the temperature calculator waiting for a thread")
+                .setUnit("1")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(executor.getQueue().size()));
+
+        return Context.taskWrapping(executor);
+    }
+
     @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplateBuilder().build();
+    public RestTemplate restTemplate(CloseableHttpClient calculatorHttpClient, OpenTelemetry openTelemetry) {
+        return new RestTemplateBuilder()
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(calculatorHttpClient))
+                .additionalInterceptors(new TracingClientHttpRequestInterceptor(openTelemetry))
+                .build();
     }
 
 
     @Bean
-    public OpenTelemetry openTelemetry() {
+    public OpenTelemetry openTelemetry(@Value("${tracing.targetSpansPerSecond:1000}") double targetSpansPerSecond,
+                                       @Value("${tracing.minProbability:0.001}") double minProbability,
+                                       @Value("${tracing.updateInterval:1000}") long updateIntervalMillis,
+                                       @Value("${tracing.remoteSpansPerCall:2}") int remoteSpansPerCall) {
 
         Resource resource = Resource.getDefault().toBuilder().put(ResourceAttributes.SERVICE_NAME, "springsimul").build();
 
         OtlpGrpcSpanExporter otlpGrpcSpanExporter = OtlpGrpcSpanExporter.builder().setTimeout(2, TimeUnit.SECONDS).build();
 
+        OtlpGrpcMetricExporter otlpGrpcMetricExporter = OtlpGrpcMetricExporter.builder().setTimeout(2, TimeUnit.SECONDS).build();
+
+        SdkMeterProvider sdkMeterProvider = SdkMeterProvider.builder()
+                .registerMetricReader(PeriodicMetricReader.builder(otlpGrpcMetricExporter).build())
+                .setResource(resource)
+                .build();
+
+        // The simulator starts the traces, the calculator follows its decisions through the propagated context
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(targetSpansPerSecond, minProbability, updateIntervalMillis, remoteSpansPerCall, sdkMeterProvider.get(AdaptiveSampler.class.getName()));
+
         SdkTracerProvider setTracerProvider = SdkTracerProvider.builder()
+                .setSampler(Sampler.parentBased(adaptiveSampler))
+                .addSpanProcessor(adaptiveSampler.spanCounter())
                 .addSpanProcessor(BatchSpanProcessor.builder(otlpGrpcSpanExporter).setScheduleDelay(100, TimeUnit.MILLISECONDS).build())
                 .setResource(resource)
                 .build();
 
-        return OpenTelemetrySdk.builder().setTracerProvider(setTracerProvider).setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance())).buildAndRegisterGlobal();
+        return OpenTelemetrySdk.builder().setTracerProvider(setTracerProvider).setMeterProvider(sdkMeterProvider).setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance())).buildAndRegisterGlobal();
 
     }
 }
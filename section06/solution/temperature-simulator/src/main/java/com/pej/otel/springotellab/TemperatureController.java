@@ -52,7 +52,7 @@ public class TemperatureController {
             }
             return result;
         } catch (Throwable t) {
-            span.recordException(t);
+            ExceptionRecorder.record(span, t);
             throw t;
         } finally {
             span.end();
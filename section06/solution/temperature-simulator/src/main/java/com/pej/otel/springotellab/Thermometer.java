@@ -1,22 +1,24 @@
 package com.pej.otel.springotellab;
 
-import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
-import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
-import io.opentelemetry.context.propagation.TextMapSetter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 @Component
 public class Thermometer {
@@ -27,11 +29,25 @@ public class Thermometer {
     @Autowired
     private RestTemplate restTemplate;
 
+    // See TemperatureApplication.calculatorExecutor()
+    @Autowired
+    private ExecutorService calculatorExecutor;
+
     private final Tracer tracer;
 
 
     private String url = "http://localhost:8088/measureTemperature";
 
+    private String batchUrl = "http://localhost:8088/measureTemperatures?count={count}";
+
+    // Number of readings requested per call to the calculator, 1 falls back to one call per reading
+    @Value("${calculator.batchSize:1}")
+    private int batchSize;
+
+    // Number of calls to the calculator that can be in flight, 1 makes them sequentially
+    @Value("${calculator.concurrency:1}")
+    private int concurrency;
+
     public Thermometer(OpenTelemetry openTelemetry) {
         this.tracer = openTelemetry.getTracer(Thermometer.class.getName(), "0.1.0");
     }
@@ -42,22 +58,84 @@ public class Thermometer {
         Span parentSpan = tracer.spanBuilder("simulateTemperature").startSpan();
 
         try (Scope scope = parentSpan.makeCurrent()) {
+            if (concurrency > 1) {
+                return measureConcurrently(measurements);
+            }
+
+            if (batchSize > 1) {
+                for (int i = 0; i < measurements; i += batchSize) {
+                    for (int temperature : measureBatch(Math.min(batchSize, measurements - i))) {
+                        temperatures.add(temperature);
+                    }
+                }
+                return temperatures;
+            }
+
             for (int i = 0; i < measurements; i++) {
-                HttpHeaders headers = new HttpHeaders();
-                TextMapSetter<HttpHeaders> setter = HttpHeaders::set;
-                //Map<String, String> headers = new HashMap<>();
-                GlobalOpenTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), headers, setter);
-                //W3CTraceContextPropagator.getInstance().inject(Context.current(), headers, (carrier, key, value) -> headers.put(key, value));
-                //W3CTraceContextPropagator.getInstance().inject(Context.current(), headers, setter);
-                //openTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), headers, setter);
-
-                HttpEntity<String> entity = new HttpEntity<>(headers);
-                ResponseEntity<Integer> response = restTemplate.exchange(url, HttpMethod.GET, entity, Integer.class);
-                temperatures.add(response.getBody());
+                temperatures.add(measureOnce());
             }
             return temperatures;
         } finally {
             parentSpan.end();
         }
     }
+
+    // Submits the calls to the calculator executor, keeping at most calculator.concurrency of them submitted for this
+    // request: the next call is only submitted once the oldest one completed, so a large request doesn't fill the queue.
+    // The executor propagates the current context, so each call is a child of simulateTemperature.
+    private List<Integer> measureConcurrently(int measurements) {
+        int callSize = Math.max(batchSize, 1);
+        Deque<Future<int[]>> calls = new ArrayDeque<>(concurrency);
+        List<Integer> temperatures = new ArrayList<Integer>(Math.max(measurements, 0));
+        int submitted = 0;
+        try {
+            while (submitted < measurements || !calls.isEmpty()) {
+                while (submitted < measurements && calls.size() < concurrency) {
+                    int count = Math.min(callSize, measurements - submitted);
+                    calls.add(calculatorExecutor.submit(() -> count == 1 ? new int[] {measureOnce()} : measureBatch(count)));
+                    submitted += count;
+                }
+
+                // Results are collected in submission order, whatever the order in which the calls complete
+                for (int temperature : calls.poll().get()) {
+                    temperatures.add(temperature);
+                }
+            }
+            return temperatures;
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many calls to the temperature calculator", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the temperature calculator", e);
+        } finally {
+            calls.forEach(call -> call.cancel(true));
+        }
+    }
+
+    // The trace context is injected by TracingClientHttpRequestInterceptor, see TemperatureApplication.restTemplate()
+    private int measureOnce() {
+        Integer temperature = restTemplate.getForObject(url, Integer.class);
+        if (temperature == null) {
+            throw new IllegalStateException("Empty response from the temperature calculator");
+        }
+        return temperature;
+    }
+
+    // Fetches count readings with a single call to the calculator
+    private int[] measureBatch(int count) {
+        Span batchSpan = tracer.spanBuilder("measureBatch").startSpan();
+        batchSpan.setAttribute("batch.size", count);
+
+        try (Scope scope = batchSpan.makeCurrent()) {
+            int[] temperatures = restTemplate.getForObject(batchUrl, int[].class, count);
+            if (temperatures == null) {
+                throw new IllegalStateException("Empty response from the temperature calculator");
+            }
+            return temperatures;
+        } finally {
+            batchSpan.end();
+        }
+    }
 }
@@ -2,6 +2,7 @@ plugins {
 	java
 	id("org.springframework.boot") version "3.2.2"
 	id("io.spring.dependency-management") version "1.1.4"
+	id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.pej.otel"
@@ -22,6 +23,10 @@ dependencies {
 	implementation("io.opentelemetry:opentelemetry-exporter-logging")
 	implementation("io.opentelemetry.semconv:opentelemetry-semconv:1.23.1-alpha")
 	implementation("io.opentelemetry:opentelemetry-exporter-otlp:1.35.0")
+	// Internal API of the OTLP exporters, only compared with OtlpSpanEncoder in SpanEncodingBenchmark
+	jmhImplementation("io.opentelemetry:opentelemetry-exporter-otlp-common")
+	// InMemoryMetricReader, reads the dropped spans in SpanProcessorBenchmark
+	jmhImplementation("io.opentelemetry:opentelemetry-sdk-testing")
 	implementation("io.opentelemetry:opentelemetry-sdk-metrics:1.35.0")
 }
 
@@ -31,6 +36,25 @@ dependencyManagement {
 	}
 }
 
+jmh {
+	jmhVersion.set("1.37")
+	profilers.add("gc")
+	resultFormat.set("JSON")
+	resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+// Replays the spans captured by FileSpanExporter: gradle replayTraces --args="<directory> [speed] [endpoint]"
+tasks.register<JavaExec>("replayTraces") {
+	classpath = sourceSets["main"].runtimeClasspath
+	mainClass.set("com.pej.otel.springotellab.TraceReplay")
+}
+
+// Sends the spans written in the shared ring by the application: gradle forwardSpans --args="<ring file> [endpoint]"
+tasks.register<JavaExec>("forwardSpans") {
+	classpath = sourceSets["main"].runtimeClasspath
+	mainClass.set("com.pej.otel.springotellab.SpanForwarder")
+}
+
 tasks.named("jar") {
 	enabled = false
 }
@@ -0,0 +1,209 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.exporter.internal.otlp.traces.TraceRequestMarshaler;
+import io.opentelemetry.exporter.otlp.trace.OtlpGrpcSpanExporter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization of a batch of spans done by {@link OtlpGrpcSpanExporter}, through a
+ * {@link TraceRequestMarshaler}, with the {@link OtlpSpanEncoder} writing into a reused direct buffer. The batch has
+ * the size of a full BatchSpanProcessor batch and the spans of a Thermometer request: a simulateTemperature span
+ * with its attributes and its measureOnce children.
+ *
+ * Each invocation encodes the whole batch, the results are per span. Run with {@code gradle jmh} and compare
+ * {@code gc.alloc.rate.norm}, the bytes allocated per span.
+ *
+ * Before measuring, the setup checks that OtlpSpanEncoder writes the same bytes as TraceRequestMarshaler for a batch
+ * covering what the Thermometer spans don't have: events, links, trace state, array attributes, several scopes and
+ * non-ASCII strings. The benchmark fails when they differ.
+ */
+@State(org.openjdk.jmh.annotations.Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpanEncodingBenchmark {
+
+    private static final int BATCH_SIZE = 512;
+
+    private final List<SpanData> spans = new ArrayList<>();
+
+    private final OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        checkEncoder();
+
+        try (SdkTracerProvider sdkTracerProvider = SdkTracerProvider.builder()
+                .addSpanProcessor(SimpleSpanProcessor.create(new CollectingSpanExporter(spans)))
+                .build()) {
+            Tracer tracer = sdkTracerProvider.get(Thermometer.class.getName(), "0.1.0");
+            while (spans.size() < BATCH_SIZE) {
+                Span parent = tracer.spanBuilder("simulateTemperature").setSpanKind(SpanKind.SERVER).startSpan();
+                try (Scope scope = parent.makeCurrent()) {
+                    for (int i = 0; i < 9; i++) {
+                        tracer.spanBuilder("measureOnce").startSpan().end();
+                    }
+                }
+                parent.setAttribute("temperature.count", 9L);
+                parent.setAttribute("temperature.min", 18.5);
+                parent.setAttribute("temperature.max", 24.0);
+                parent.setAttribute("temperature.mean", 21.25);
+                parent.end();
+            }
+        }
+        spans.subList(BATCH_SIZE, spans.size()).clear();
+        buffer = ByteBuffer.allocateDirect(encoder.prepare(spans));
+    }
+
+    // The marshaler groups the spans by resource and scope in a hash map, so the groups are compared one by one
+    private static void checkEncoder() throws IOException {
+        List<SpanData> spans = new ArrayList<>();
+        try (SdkTracerProvider sdkTracerProvider = SdkTracerProvider.builder()
+                .setResource(Resource.getDefault().merge(Resource.create(Attributes.of(
+                        AttributeKey.stringArrayKey("host.aliases"), List.of("thermom\u00e8tre", "\u6e29\u5ea6\u8a08", "\ud83c\udf21")))))
+                .addSpanProcessor(SimpleSpanProcessor.create(new CollectingSpanExporter(spans)))
+                .build()) {
+            Tracer tracer = sdkTracerProvider.get(Thermometer.class.getName(), "0.1.0");
+            Tracer schemaTracer = sdkTracerProvider.tracerBuilder(SpanEncodingBenchmark.class.getName())
+                    .setSchemaUrl("https://opentelemetry.io/schemas/1.23.1")
+                    .build();
+
+            Span root = tracer.spanBuilder("simulateTemperature").setSpanKind(SpanKind.SERVER)
+                    .setAttribute("temperature.count", -5L)
+                    .setAttribute("temperature.mean", 21.25)
+                    .setAttribute("temperature.cached", false)
+                    .setAttribute("location", "")
+                    .startSpan();
+            TraceState traceState = TraceState.builder().put("dd", "s:1;t.dm:-4").put("congo", "t61rcWkgMzE").build();
+            SpanContext remoteParent = SpanContext.createFromRemoteParent("0af7651916cd43dd8448eb211c80319c",
+                    "b7ad6b7169203331", TraceFlags.getSampled(), traceState);
+            Span child = schemaTracer.spanBuilder("mesure de la temp\u00e9rature \ud83c\udf21")
+                    .setParent(Context.root().with(Span.wrap(remoteParent)))
+                    .setSpanKind(SpanKind.CLIENT)
+                    .addLink(root.getSpanContext(), Attributes.of(AttributeKey.longArrayKey("link.ids"), List.of(1L, 300L, -1L)))
+                    .startSpan();
+            child.addEvent("measured", Attributes.of(
+                    AttributeKey.booleanArrayKey("valid"), List.of(true, false),
+                    AttributeKey.doubleArrayKey("values"), List.of(1.5, -0.25)));
+            child.recordException(new IllegalStateException("temp\u00e9rature hors limites: 99\u00b0"));
+            child.setStatus(StatusCode.ERROR, "\u00e9chec");
+            child.end();
+            root.setStatus(StatusCode.OK);
+            root.end();
+            for (int i = 0; i < 200; i++) {
+                tracer.spanBuilder("measureOnce").setAttribute("index", (long) i).startSpan().end();
+            }
+        }
+
+        Map<InstrumentationScopeInfo, List<SpanData>> groups = new LinkedHashMap<>();
+        for (SpanData span : spans) {
+            groups.computeIfAbsent(span.getInstrumentationScopeInfo(), scope -> new ArrayList<>()).add(span);
+        }
+        OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+        for (List<SpanData> group : groups.values()) {
+            checkSameBytes(encoder, group);
+        }
+        // Covers the bookkeeping of the sizes over several groups
+        int size = encoder.prepare(spans);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TraceRequestMarshaler.create(spans).writeBinaryTo(expected);
+        if (size != expected.size()) {
+            throw new IllegalStateException("OtlpSpanEncoder sized the batch to " + size + " bytes instead of " + expected.size());
+        }
+    }
+
+    private static void checkSameBytes(OtlpSpanEncoder encoder, List<SpanData> spans) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TraceRequestMarshaler.create(spans).writeBinaryTo(expected);
+        ByteBuffer buffer = ByteBuffer.allocate(encoder.prepare(spans));
+        encoder.write(buffer);
+        if (buffer.hasRemaining() || !Arrays.equals(buffer.array(), expected.toByteArray())) {
+            throw new IllegalStateException("OtlpSpanEncoder and TraceRequestMarshaler encode the spans of "
+                    + spans.get(0).getInstrumentationScopeInfo().getName() + " differently");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void marshaler() throws IOException {
+        TraceRequestMarshaler.create(spans).writeBinaryTo(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ByteBuffer directEncoder() {
+        encoder.prepare(spans);
+        buffer.clear();
+        encoder.write(buffer);
+        return buffer;
+    }
+
+    static class CollectingSpanExporter implements SpanExporter {
+
+        private final List<SpanData> spans;
+
+        CollectingSpanExporter(List<SpanData> spans) {
+            this.spans = spans;
+        }
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            this.spans.addAll(spans);
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the handoff of the ended spans to the export thread by the {@link BatchSpanProcessor} and the
+ * {@link ShardedSpanProcessor} when 1 to 64 threads end spans at the same time. Both get the same total queue
+ * capacity and an exporter that only counts the spans.
+ *
+ * Besides the ended spans per second, each run reports {@code exportedSpans}, the spans that went through the queue
+ * to the exporter, and {@code droppedSpans}, the spans dropped because the queue was full, both per second. Only the
+ * exported spans measure the handoff: when a queue is full, ending a span is just a failed insertion. {@code work}
+ * is the CPU work done between two spans, in Blackhole tokens, like a request does between its spans: with enough of
+ * it the export thread keeps up and nothing is dropped. Compare the results across the thread counts on a machine
+ * with as many cores.
+ *
+ * Run with {@code gradle jmh}, results are written as JSON in {@code build/results/jmh/results.json}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpanProcessorBenchmark {
+
+    private static final int QUEUE_SIZE_PER_SHARD = 2048;
+
+    private static final AttributeKey<Boolean> DROPPED = AttributeKey.booleanKey("dropped");
+
+    @Param({"batch", "sharded"})
+    public String processor;
+
+    @Param({"0", "2000"})
+    public long work;
+
+    private final CountingSpanExporter spanExporter = new CountingSpanExporter();
+
+    private InMemoryMetricReader metricReader;
+
+    private SdkMeterProvider sdkMeterProvider;
+
+    private SpanProcessor spanProcessor;
+
+    private ReadableSpan endedSpan;
+
+    private long exportedBefore;
+
+    private long iteration;
+
+    private long collectedIteration;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Delta temporality, each collection returns the spans dropped since the previous one
+        metricReader = InMemoryMetricReader.createDelta();
+        sdkMeterProvider = SdkMeterProvider.builder().registerMetricReader(metricReader).build();
+
+        int shards = Runtime.getRuntime().availableProcessors();
+        if ("sharded".equals(processor)) {
+            spanProcessor = new ShardedSpanProcessor(spanExporter, shards, QUEUE_SIZE_PER_SHARD, 512, 100,
+                    sdkMeterProvider.get("benchmark"));
+        } else {
+            spanProcessor = BatchSpanProcessor.builder(spanExporter)
+                    .setScheduleDelay(100, TimeUnit.MILLISECONDS)
+                    .setMaxQueueSize(Integer.highestOneBit(shards * 2 - 1) * QUEUE_SIZE_PER_SHARD)
+                    .setMeterProvider(sdkMeterProvider)
+                    .build();
+        }
+
+        try (SdkTracerProvider sdkTracerProvider = SdkTracerProvider.builder().build()) {
+            Span span = sdkTracerProvider.get("benchmark").spanBuilder("measureOnce").startSpan();
+            span.end();
+            endedSpan = (ReadableSpan) span;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        spanProcessor.shutdown().join(10, TimeUnit.SECONDS);
+        sdkMeterProvider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+
+    @Setup(Level.Iteration)
+    public void nextIteration() {
+        iteration++;
+    }
+
+    // Called by every thread at the end of the iteration, once it stopped ending spans: only the first one gets the
+    // counts, so the sum over the threads is the total
+    synchronized void collect(SpanCounts counts) {
+        counts.exportedSpans = 0;
+        counts.droppedSpans = 0;
+        if (collectedIteration == iteration) {
+            return;
+        }
+        collectedIteration = iteration;
+
+        spanProcessor.forceFlush().join(10, TimeUnit.SECONDS);
+        long exported = spanExporter.exported.get();
+        counts.exportedSpans = exported - exportedBefore;
+        exportedBefore = exported;
+        for (MetricData metric : metricReader.collectAllMetrics()) {
+            if (metric.getName().equals("sharded_processor_dropped_spans")) {
+                counts.droppedSpans += sum(metric, false);
+            } else if (metric.getName().equals("processedSpans")) {
+                // BatchSpanProcessor counts the spans it dropped with dropped=true
+                counts.droppedSpans += sum(metric, true);
+            }
+        }
+    }
+
+    private static long sum(MetricData metric, boolean droppedOnly) {
+        long sum = 0;
+        for (LongPointData point : metric.getLongSumData().getPoints()) {
+            if (!droppedOnly || Boolean.TRUE.equals(point.getAttributes().get(DROPPED))) {
+                sum += point.getValue();
+            }
+        }
+        return sum;
+    }
+
+    // Reported per second next to the ended spans
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class SpanCounts {
+
+        public long exportedSpans;
+
+        public long droppedSpans;
+
+        @TearDown(Level.Iteration)
+        public void collect(SpanProcessorBenchmark benchmark) {
+            benchmark.collect(this);
+        }
+    }
+
+    private void endSpan() {
+        if (work > 0) {
+            Blackhole.consumeCPU(work);
+        }
+        spanProcessor.onEnd(endedSpan);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void endSpan01(SpanCounts counts) {
+        endSpan();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void endSpan04(SpanCounts counts) {
+        endSpan();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void endSpan16(SpanCounts counts) {
+        endSpan();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void endSpan64(SpanCounts counts) {
+        endSpan();
+    }
+
+    static class CountingSpanExporter implements SpanExporter {
+
+        private final AtomicLong exported = new AtomicLong();
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            exported.addAndGet(spans.size());
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
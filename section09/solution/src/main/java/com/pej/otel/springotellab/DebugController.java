@@ -0,0 +1,23 @@
+package com.pej.otel.springotellab;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class DebugController {
+
+    @Autowired
+    RecentSpansProcessor recentSpansProcessor;
+
+    // Not traced, so looking at the spans does not add spans
+    @GetMapping("/debug/traces")
+    public Map<String, Object> traces(@RequestParam("name") Optional<String> name,
+                                      @RequestParam("errors") Optional<Boolean> errors) {
+        return recentSpansProcessor.snapshot(name.orElse(null), errors.orElse(false));
+    }
+}
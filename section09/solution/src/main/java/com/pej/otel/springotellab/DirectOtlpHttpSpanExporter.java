@@ -0,0 +1,180 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+
+/**
+ * Exports the spans to the OTLP/HTTP endpoint of the collector, serialized by an {@link OtlpSpanEncoder} directly
+ * into direct buffers taken from a pool. The buffer is sent as the request body and returned to the pool once the
+ * collector has answered: exporting a batch allocates a few objects for the request instead of several per span.
+ *
+ * Batches that don't fit in a pooled buffer are encoded in a buffer allocated for them. The size of each request is
+ * known before encoding it, and counted in {@code span_export_bytes} without sizing the batch a second time.
+ *
+ * {@code flush()} and {@code shutdown()} complete once the requests in flight are answered, like the SDK exporters.
+ */
+public class DirectOtlpHttpSpanExporter implements SpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectOtlpHttpSpanExporter.class);
+
+    private final OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+
+    private final URI endpoint;
+
+    private final Duration timeout;
+
+    private final int bufferSize;
+
+    private final ArrayBlockingQueue<ByteBuffer> pool;
+
+    private final HttpClient httpClient;
+
+    private final LongCounter bytesCounter;
+
+    // Results of the requests sent and not answered yet
+    private final Set<CompletableResultCode> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean shutdown;
+
+    public DirectOtlpHttpSpanExporter(URI endpoint, Duration timeout, int bufferSize, int pooledBuffers, Meter meter) {
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        this.bufferSize = bufferSize;
+        this.pool = new ArrayBlockingQueue<>(pooledBuffers);
+        this.httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.bytesCounter = meter.counterBuilder("span_export_bytes")
+                .setDescription("Size of the exported batches serialized as OTLP protobuf, before compression")
+                .setUnit("By")
+                .build();
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        if (shutdown) {
+            return CompletableResultCode.ofFailure();
+        }
+        if (spans.isEmpty()) {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        ByteBuffer buffer;
+        // The encoder reuses its state from one batch to the next
+        synchronized (encoder) {
+            int size = encoder.prepare(spans);
+            buffer = acquire(size);
+            try {
+                encoder.write(buffer);
+            } catch (RuntimeException e) {
+                release(buffer);
+                logger.warn("Could not encode {} spans", spans.size(), e);
+                return CompletableResultCode.ofFailure();
+            }
+        }
+        bytesCounter.add(buffer.position());
+        buffer.flip();
+
+        CompletableResultCode result = new CompletableResultCode();
+        inFlight.add(result);
+        result.whenComplete(() -> inFlight.remove(result));
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .timeout(timeout)
+                .header("Content-Type", "application/x-protobuf")
+                .POST(HttpRequest.BodyPublishers.fromPublisher(new BufferPublisher(buffer), buffer.remaining()))
+                .build();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            release(buffer);
+            if (error == null && response.statusCode() >= 200 && response.statusCode() < 300) {
+                result.succeed();
+            } else {
+                if (error != null) {
+                    logger.warn("Could not export {} spans: {}", spans.size(), error.toString());
+                } else {
+                    logger.warn("Collector rejected {} spans with status {}", spans.size(), response.statusCode());
+                }
+                result.fail();
+            }
+        });
+        return result;
+    }
+
+    private ByteBuffer acquire(int size) {
+        if (size > bufferSize) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            // Every pooled buffer is in flight, the new one joins the pool when released if there is room
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize) {
+            pool.offer(buffer);
+        }
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofAll(new ArrayList<>(inFlight));
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        shutdown = true;
+        return flush();
+    }
+
+    // Hands the encoded request to the HTTP client as a single buffer instead of copying it into a byte array
+    private static final class BufferPublisher implements Flow.Publisher<ByteBuffer> {
+
+        private final ByteBuffer buffer;
+
+        private BufferPublisher(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+
+                private boolean done;
+
+                @Override
+                public void request(long n) {
+                    if (!done && n > 0) {
+                        done = true;
+                        // A retried request subscribes again and reads the buffer from the start
+                        subscriber.onNext(buffer.duplicate());
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    done = true;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * Writes the span batches to files in {@code directory}, each batch as an OTLP protobuf request preceded by the time
+ * of the export in epoch milliseconds (8 bytes) and the size of the request (4 bytes). A new file is started once
+ * the current one would exceed {@code maxFileSize} bytes, and only the last {@code maxFiles} files are kept.
+ *
+ * {@link TraceReplay} reads these files and sends the requests again, keeping the time between the batches.
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSpanExporter.class);
+
+    static final String PREFIX = "spans-";
+
+    static final String SUFFIX = ".otlp";
+
+    static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+    private final Path directory;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final ArrayDeque<Path> files = new ArrayDeque<>();
+
+    private final OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+
+    // Reused for every batch, grown when a request does not fit
+    private ByteBuffer body = ByteBuffer.allocateDirect(64 * 1024);
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+
+    private FileChannel channel;
+
+    private long fileSize;
+
+    private long fileSequence;
+
+    public FileSpanExporter(Path directory, long maxFileSize, int maxFiles) throws IOException {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        Files.createDirectories(directory);
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.filter(FileSpanExporter::isSpanFile).sorted().forEach(files::addLast);
+        }
+    }
+
+    static boolean isSpanFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+        try {
+            int requestSize = encoder.prepare(spans);
+            if (requestSize > body.capacity()) {
+                body = ByteBuffer.allocateDirect(Math.max(requestSize, body.capacity() * 2));
+            }
+            body.clear();
+            encoder.write(body);
+            body.flip();
+
+            if (channel == null || fileSize + HEADER_SIZE + body.remaining() > maxFileSize) {
+                rotate();
+            }
+            header.clear();
+            header.putLong(System.currentTimeMillis()).putInt(body.remaining()).flip();
+            ByteBuffer[] buffers = {header, body};
+            long size = HEADER_SIZE + body.remaining();
+            while (body.hasRemaining()) {
+                channel.write(buffers);
+            }
+            fileSize += size;
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            logger.warn("Could not write {} spans to {}", spans.size(), directory, e);
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        // The time keeps the files in order across restarts, the sequence within the same millisecond
+        Path file = directory.resolve(String.format("%s%013d-%06d%s", PREFIX, System.currentTimeMillis(), fileSequence++ % 1_000_000, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        files.addLast(file);
+        while (files.size() > maxFiles) {
+            Files.deleteIfExists(files.removeFirst());
+        }
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public synchronized CompletableResultCode shutdown() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            return CompletableResultCode.ofFailure();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+import java.util.Collection;
+
+/**
+ * Records the batches going through the span exporter it wraps: their size in spans ({@code span_export_batch_size})
+ * and in bytes ({@code span_export_bytes}), the duration of the exports ({@code span_export_duration}) and the failed
+ * ones ({@code span_export_failures}).
+ *
+ * The bytes are the size of the batch serialized as an OTLP protobuf request, before compression, computed by an
+ * {@link OtlpSpanEncoder}. It walks every span, attribute and event of the batch once more, about half the cost of
+ * encoding it, which is why {@code measureBytes} is off by default.
+ */
+public class InstrumentedSpanExporter implements SpanExporter {
+
+    private static final AttributeKey<Boolean> SUCCESS = AttributeKey.booleanKey("success");
+
+    private static final Attributes SUCCEEDED = Attributes.of(SUCCESS, true);
+
+    private static final Attributes FAILED = Attributes.of(SUCCESS, false);
+
+    private final SpanExporter delegate;
+
+    private final boolean measureBytes;
+
+    private final OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+
+    private final LongHistogram batchSizeHistogram;
+
+    private final LongCounter bytesCounter;
+
+    private final DoubleHistogram durationHistogram;
+
+    private final LongCounter failuresCounter;
+
+    public InstrumentedSpanExporter(SpanExporter delegate, Meter meter, boolean measureBytes) {
+        this.delegate = delegate;
+        this.measureBytes = measureBytes;
+        this.batchSizeHistogram = meter.histogramBuilder("span_export_batch_size")
+                .setDescription("Spans per exported batch")
+                .setUnit("1")
+                .ofLongs()
+                .build();
+        this.bytesCounter = meter.counterBuilder("span_export_bytes")
+                .setDescription("Size of the exported batches serialized as OTLP protobuf, before compression")
+                .setUnit("By")
+                .build();
+        this.durationHistogram = meter.histogramBuilder("span_export_duration")
+                .setDescription("Duration of the batch exports")
+                .setUnit("ms")
+                .build();
+        this.failuresCounter = meter.counterBuilder("span_export_failures")
+                .setDescription("Batch exports that failed or timed out")
+                .setUnit("1")
+                .build();
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        batchSizeHistogram.record(spans.size());
+        if (measureBytes) {
+            // The encoder reuses its state from one batch to the next
+            synchronized (encoder) {
+                bytesCounter.add(encoder.prepare(spans));
+            }
+        }
+
+        long start = System.nanoTime();
+        CompletableResultCode result = delegate.export(spans);
+        result.whenComplete(() -> {
+            double duration = (System.nanoTime() - start) / 1_000_000.0;
+            if (result.isSuccess()) {
+                durationHistogram.record(duration, SUCCEEDED);
+            } else {
+                durationHistogram.record(duration, FAILED);
+                failuresCounter.add(1);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return delegate.flush();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return delegate.shutdown();
+    }
+}
@@ -0,0 +1,607 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Encodes span batches as OTLP {@code ExportTraceServiceRequest} protobuf messages straight from the SpanData into a
+ * ByteBuffer, without the intermediate marshaler objects the OTLP exporters create for every span, attribute and event.
+ *
+ * Protobuf prefixes the nested messages with their size, so {@link #prepare} first computes the sizes of all the
+ * messages and keeps them, in the order they are written, in an array reused from batch to batch. {@link #write} then
+ * writes the request in a single pass. The ids are decoded from their hex form and the strings encoded to UTF-8
+ * directly in the buffer. The encoder is not thread-safe.
+ */
+public class OtlpSpanEncoder {
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LEN = 2;
+    private static final int FIXED32 = 5;
+
+    private final Map<Resource, Map<InstrumentationScopeInfo, List<SpanData>>> groups = new LinkedHashMap<>();
+
+    // Sizes of the nested messages, in the order write() needs them
+    private int[] sizes = new int[1024];
+
+    private int sizeCount;
+
+    private int nextSize;
+
+    private ByteBuffer out;
+
+    private final AttributeEncoder attributeEncoder = new AttributeEncoder();
+
+    private final TraceStateEncoder traceStateEncoder = new TraceStateEncoder();
+
+    // Groups the spans by resource and scope and computes the size of the request
+    public int prepare(Collection<SpanData> spans) {
+        groups.clear();
+        for (SpanData span : spans) {
+            groups.computeIfAbsent(span.getResource(), resource -> new LinkedHashMap<>())
+                    .computeIfAbsent(span.getInstrumentationScopeInfo(), scope -> new ArrayList<>())
+                    .add(span);
+        }
+
+        sizeCount = 0;
+        int size = 0;
+        for (Map.Entry<Resource, Map<InstrumentationScopeInfo, List<SpanData>>> group : groups.entrySet()) {
+            size += messageSize(1, sizeResourceSpans(group.getKey(), group.getValue()));
+        }
+        return size;
+    }
+
+    // Writes the request prepared by the last call to prepare(), the buffer must have room for its size
+    public void write(ByteBuffer buffer) {
+        out = buffer;
+        nextSize = 0;
+        for (Map.Entry<Resource, Map<InstrumentationScopeInfo, List<SpanData>>> group : groups.entrySet()) {
+            writeMessageHeader(1);
+            writeResourceSpans(group.getKey(), group.getValue());
+        }
+        out = null;
+    }
+
+    private int reserveSize() {
+        if (sizeCount == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        }
+        return sizeCount++;
+    }
+
+    // ResourceSpans: resource = 1, scope_spans = 2, schema_url = 3
+
+    private int sizeResourceSpans(Resource resource, Map<InstrumentationScopeInfo, List<SpanData>> scopes) {
+        int slot = reserveSize();
+        int size = messageSize(1, sizeResource(resource));
+        for (Map.Entry<InstrumentationScopeInfo, List<SpanData>> scope : scopes.entrySet()) {
+            size += messageSize(2, sizeScopeSpans(scope.getKey(), scope.getValue()));
+        }
+        size += stringSize(3, resource.getSchemaUrl());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeResourceSpans(Resource resource, Map<InstrumentationScopeInfo, List<SpanData>> scopes) {
+        writeMessageHeader(1);
+        writeResource(resource);
+        for (Map.Entry<InstrumentationScopeInfo, List<SpanData>> scope : scopes.entrySet()) {
+            writeMessageHeader(2);
+            writeScopeSpans(scope.getKey(), scope.getValue());
+        }
+        writeString(3, resource.getSchemaUrl());
+    }
+
+    // Resource: attributes = 1
+
+    private int sizeResource(Resource resource) {
+        int slot = reserveSize();
+        int size = sizeAttributes(1, resource.getAttributes());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeResource(Resource resource) {
+        writeAttributes(1, resource.getAttributes());
+    }
+
+    // ScopeSpans: scope = 1, spans = 2, schema_url = 3
+
+    private int sizeScopeSpans(InstrumentationScopeInfo scope, List<SpanData> spans) {
+        int slot = reserveSize();
+        int size = messageSize(1, sizeScope(scope));
+        for (int i = 0; i < spans.size(); i++) {
+            size += messageSize(2, sizeSpan(spans.get(i)));
+        }
+        size += stringSize(3, scope.getSchemaUrl());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeScopeSpans(InstrumentationScopeInfo scope, List<SpanData> spans) {
+        writeMessageHeader(1);
+        writeScope(scope);
+        for (int i = 0; i < spans.size(); i++) {
+            writeMessageHeader(2);
+            writeSpan(spans.get(i));
+        }
+        writeString(3, scope.getSchemaUrl());
+    }
+
+    // InstrumentationScope: name = 1, version = 2, attributes = 3
+
+    private int sizeScope(InstrumentationScopeInfo scope) {
+        int slot = reserveSize();
+        int size = stringSize(1, scope.getName()) + stringSize(2, scope.getVersion()) + sizeAttributes(3, scope.getAttributes());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeScope(InstrumentationScopeInfo scope) {
+        writeString(1, scope.getName());
+        writeString(2, scope.getVersion());
+        writeAttributes(3, scope.getAttributes());
+    }
+
+    // Span: trace_id = 1, span_id = 2, trace_state = 3, parent_span_id = 4, name = 5, kind = 6, start_time_unix_nano = 7,
+    // end_time_unix_nano = 8, attributes = 9, dropped_attributes_count = 10, events = 11, dropped_events_count = 12,
+    // links = 13, dropped_links_count = 14, status = 15, flags = 16
+
+    private int sizeSpan(SpanData span) {
+        int slot = reserveSize();
+        SpanContext spanContext = span.getSpanContext();
+        int size = idSize(1, 16) + idSize(2, 8) + traceStateSize(3, spanContext.getTraceState());
+        if (span.getParentSpanContext().isValid()) {
+            size += idSize(4, 8);
+        }
+        size += stringSize(5, span.getName())
+                + varintFieldSize(6, span.getKind().ordinal() + 1)
+                + fixed64Size(7, span.getStartEpochNanos())
+                + fixed64Size(8, span.getEndEpochNanos())
+                + sizeAttributes(9, span.getAttributes())
+                + varintFieldSize(10, span.getTotalAttributeCount() - span.getAttributes().size());
+        List<EventData> events = span.getEvents();
+        for (int i = 0; i < events.size(); i++) {
+            size += messageSize(11, sizeEvent(events.get(i)));
+        }
+        size += varintFieldSize(12, span.getTotalRecordedEvents() - events.size());
+        List<LinkData> links = span.getLinks();
+        for (int i = 0; i < links.size(); i++) {
+            size += messageSize(13, sizeLink(links.get(i)));
+        }
+        size += varintFieldSize(14, span.getTotalRecordedLinks() - links.size())
+                + messageSize(15, sizeStatus(span.getStatus()))
+                + fixed32Size(16, spanContext.getTraceFlags().asByte());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeSpan(SpanData span) {
+        SpanContext spanContext = span.getSpanContext();
+        writeId(1, spanContext.getTraceId());
+        writeId(2, spanContext.getSpanId());
+        writeTraceState(3, spanContext.getTraceState());
+        if (span.getParentSpanContext().isValid()) {
+            writeId(4, span.getParentSpanContext().getSpanId());
+        }
+        writeString(5, span.getName());
+        writeVarintField(6, span.getKind().ordinal() + 1);
+        writeFixed64(7, span.getStartEpochNanos());
+        writeFixed64(8, span.getEndEpochNanos());
+        writeAttributes(9, span.getAttributes());
+        writeVarintField(10, span.getTotalAttributeCount() - span.getAttributes().size());
+        List<EventData> events = span.getEvents();
+        for (int i = 0; i < events.size(); i++) {
+            writeMessageHeader(11);
+            writeEvent(events.get(i));
+        }
+        writeVarintField(12, span.getTotalRecordedEvents() - events.size());
+        List<LinkData> links = span.getLinks();
+        for (int i = 0; i < links.size(); i++) {
+            writeMessageHeader(13);
+            writeLink(links.get(i));
+        }
+        writeVarintField(14, span.getTotalRecordedLinks() - links.size());
+        writeMessageHeader(15);
+        writeStatus(span.getStatus());
+        writeFixed32(16, spanContext.getTraceFlags().asByte());
+    }
+
+    // Event: time_unix_nano = 1, name = 2, attributes = 3, dropped_attributes_count = 4
+
+    private int sizeEvent(EventData event) {
+        int slot = reserveSize();
+        int size = fixed64Size(1, event.getEpochNanos()) + stringSize(2, event.getName())
+                + sizeAttributes(3, event.getAttributes())
+                + varintFieldSize(4, event.getTotalAttributeCount() - event.getAttributes().size());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeEvent(EventData event) {
+        writeFixed64(1, event.getEpochNanos());
+        writeString(2, event.getName());
+        writeAttributes(3, event.getAttributes());
+        writeVarintField(4, event.getTotalAttributeCount() - event.getAttributes().size());
+    }
+
+    // Link: trace_id = 1, span_id = 2, trace_state = 3, attributes = 4, dropped_attributes_count = 5, flags = 6
+
+    private int sizeLink(LinkData link) {
+        int slot = reserveSize();
+        SpanContext spanContext = link.getSpanContext();
+        int size = idSize(1, 16) + idSize(2, 8) + traceStateSize(3, spanContext.getTraceState())
+                + sizeAttributes(4, link.getAttributes())
+                + varintFieldSize(5, link.getTotalAttributeCount() - link.getAttributes().size())
+                + fixed32Size(6, spanContext.getTraceFlags().asByte());
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeLink(LinkData link) {
+        SpanContext spanContext = link.getSpanContext();
+        writeId(1, spanContext.getTraceId());
+        writeId(2, spanContext.getSpanId());
+        writeTraceState(3, spanContext.getTraceState());
+        writeAttributes(4, link.getAttributes());
+        writeVarintField(5, link.getTotalAttributeCount() - link.getAttributes().size());
+        writeFixed32(6, spanContext.getTraceFlags().asByte());
+    }
+
+    // Status: message = 2, code = 3
+
+    private int sizeStatus(StatusData status) {
+        int slot = reserveSize();
+        int size = stringSize(2, status.getDescription()) + varintFieldSize(3, statusCode(status.getStatusCode()));
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeStatus(StatusData status) {
+        writeString(2, status.getDescription());
+        writeVarintField(3, statusCode(status.getStatusCode()));
+    }
+
+    private static int statusCode(StatusCode statusCode) {
+        switch (statusCode) {
+            case OK:
+                return 1;
+            case ERROR:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    // KeyValue: key = 1, value = 2. AnyValue: string_value = 1, bool_value = 2, int_value = 3, double_value = 4,
+    // array_value = 5. ArrayValue: values = 1
+
+    private int sizeAttributes(int field, Attributes attributes) {
+        if (attributes.isEmpty()) {
+            return 0;
+        }
+        attributeEncoder.field = field;
+        attributeEncoder.writing = false;
+        attributeEncoder.size = 0;
+        attributes.forEach(attributeEncoder);
+        return attributeEncoder.size;
+    }
+
+    private void writeAttributes(int field, Attributes attributes) {
+        if (attributes.isEmpty()) {
+            return;
+        }
+        attributeEncoder.field = field;
+        attributeEncoder.writing = true;
+        attributes.forEach(attributeEncoder);
+    }
+
+    private int sizeKeyValue(AttributeKey<?> key, Object value) {
+        int slot = reserveSize();
+        int size = stringSize(1, key.getKey()) + messageSize(2, sizeAnyValue(value));
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeKeyValue(AttributeKey<?> key, Object value) {
+        writeString(1, key.getKey());
+        writeMessageHeader(2);
+        writeAnyValue(value);
+    }
+
+    private int sizeAnyValue(Object value) {
+        int slot = reserveSize();
+        int size;
+        if (value instanceof String) {
+            // A oneof member is written even when it has the default value
+            size = tagSize(1) + lengthDelimitedSize(utf8Size((String) value));
+        } else if (value instanceof Boolean) {
+            size = tagSize(2) + 1;
+        } else if (value instanceof Long) {
+            size = tagSize(3) + varintSize((Long) value);
+        } else if (value instanceof Double) {
+            size = tagSize(4) + Long.BYTES;
+        } else if (value instanceof List) {
+            size = messageSize(5, sizeArrayValue((List<?>) value));
+        } else {
+            size = tagSize(1) + lengthDelimitedSize(utf8Size(String.valueOf(value)));
+        }
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeAnyValue(Object value) {
+        if (value instanceof String) {
+            writeTag(1, LEN);
+            writeStringValue((String) value);
+        } else if (value instanceof Boolean) {
+            writeTag(2, VARINT);
+            out.put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Long) {
+            writeTag(3, VARINT);
+            writeVarint((Long) value);
+        } else if (value instanceof Double) {
+            writeTag(4, FIXED64);
+            out.putLong(Long.reverseBytes(Double.doubleToRawLongBits((Double) value)));
+        } else if (value instanceof List) {
+            writeMessageHeader(5);
+            writeArrayValue((List<?>) value);
+        } else {
+            writeTag(1, LEN);
+            writeStringValue(String.valueOf(value));
+        }
+    }
+
+    private int sizeArrayValue(List<?> values) {
+        int slot = reserveSize();
+        int size = 0;
+        for (int i = 0; i < values.size(); i++) {
+            size += messageSize(1, sizeAnyValue(values.get(i)));
+        }
+        sizes[slot] = size;
+        return size;
+    }
+
+    private void writeArrayValue(List<?> values) {
+        for (int i = 0; i < values.size(); i++) {
+            writeMessageHeader(1);
+            writeAnyValue(values.get(i));
+        }
+    }
+
+    // Trace state as in the tracestate header: key=value pairs separated by commas
+
+    private int traceStateSize(int field, TraceState traceState) {
+        if (traceState.isEmpty()) {
+            return 0;
+        }
+        traceStateEncoder.writing = false;
+        traceStateEncoder.size = 0;
+        traceState.forEach(traceStateEncoder);
+        int size = traceStateEncoder.size - 1;
+        return tagSize(field) + lengthDelimitedSize(size);
+    }
+
+    private void writeTraceState(int field, TraceState traceState) {
+        if (traceState.isEmpty()) {
+            return;
+        }
+        traceStateEncoder.writing = false;
+        traceStateEncoder.size = 0;
+        traceState.forEach(traceStateEncoder);
+        writeTag(field, LEN);
+        writeVarint(traceStateEncoder.size - 1);
+        traceStateEncoder.writing = true;
+        traceStateEncoder.first = true;
+        traceState.forEach(traceStateEncoder);
+    }
+
+    // Sizes
+
+    private static int tagSize(int field) {
+        return varintSize((long) field << 3);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int lengthDelimitedSize(int length) {
+        return varintSize(length) + length;
+    }
+
+    private static int messageSize(int field, int size) {
+        return tagSize(field) + lengthDelimitedSize(size);
+    }
+
+    private static int stringSize(int field, String value) {
+        return value == null || value.isEmpty() ? 0 : tagSize(field) + lengthDelimitedSize(utf8Size(value));
+    }
+
+    private static int idSize(int field, int length) {
+        return tagSize(field) + lengthDelimitedSize(length);
+    }
+
+    private static int varintFieldSize(int field, long value) {
+        return value == 0 ? 0 : tagSize(field) + varintSize(value);
+    }
+
+    private static int fixed64Size(int field, long value) {
+        return value == 0 ? 0 : tagSize(field) + Long.BYTES;
+    }
+
+    private static int fixed32Size(int field, int value) {
+        return value == 0 ? 0 : tagSize(field) + Integer.BYTES;
+    }
+
+    private static int utf8Size(String value) {
+        int size = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    // Writing
+
+    private void writeTag(int field, int wireType) {
+        writeVarint(((long) field << 3) | wireType);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private void writeMessageHeader(int field) {
+        writeTag(field, LEN);
+        writeVarint(sizes[nextSize++]);
+    }
+
+    private void writeString(int field, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        writeTag(field, LEN);
+        writeStringValue(value);
+    }
+
+    private void writeStringValue(String value) {
+        writeVarint(utf8Size(value));
+        writeUtf8(value);
+    }
+
+    private void writeUtf8(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                // Unpaired surrogates are written as is, like String.getBytes writes a replacement character
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    // Decodes the hex id in the buffer
+    private void writeId(int field, String hexId) {
+        writeTag(field, LEN);
+        writeVarint(hexId.length() / 2);
+        for (int i = 0; i < hexId.length(); i += 2) {
+            out.put((byte) ((Character.digit(hexId.charAt(i), 16) << 4) | Character.digit(hexId.charAt(i + 1), 16)));
+        }
+    }
+
+    private void writeVarintField(int field, long value) {
+        if (value != 0) {
+            writeTag(field, VARINT);
+            writeVarint(value);
+        }
+    }
+
+    private void writeFixed64(int field, long value) {
+        if (value != 0) {
+            writeTag(field, FIXED64);
+            out.putLong(Long.reverseBytes(value));
+        }
+    }
+
+    private void writeFixed32(int field, int value) {
+        if (value != 0) {
+            writeTag(field, FIXED32);
+            out.putInt(Integer.reverseBytes(value));
+        }
+    }
+
+    // Reused for every attribute, a lambda capturing the field would be allocated for every span
+    private final class AttributeEncoder implements BiConsumer<AttributeKey<?>, Object> {
+
+        private int field;
+
+        private boolean writing;
+
+        private int size;
+
+        @Override
+        public void accept(AttributeKey<?> key, Object value) {
+            if (writing) {
+                writeMessageHeader(field);
+                writeKeyValue(key, value);
+            } else {
+                size += messageSize(field, sizeKeyValue(key, value));
+            }
+        }
+    }
+
+    private final class TraceStateEncoder implements BiConsumer<String, String> {
+
+        private boolean writing;
+
+        private boolean first;
+
+        // Includes one separator too many
+        private int size;
+
+        @Override
+        public void accept(String key, String value) {
+            if (writing) {
+                if (!first) {
+                    out.put((byte) ',');
+                }
+                first = false;
+                writeUtf8(key);
+                out.put((byte) '=');
+                writeUtf8(value);
+            } else {
+                size += utf8Size(key) + 1 + utf8Size(value) + 1;
+            }
+        }
+    }
+}
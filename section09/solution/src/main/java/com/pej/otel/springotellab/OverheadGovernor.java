@@ -0,0 +1,101 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lowers the {@link SpanDetail} used by the {@link Thermometer} when the process CPU load goes above
+ * {@code highLoad}, one level per check, and raises it back when the load falls under {@code lowLoad}.
+ * The gap between both thresholds avoids switching at every check when the load stays around one of them.
+ *
+ * The configured level is the most detailed one the governor goes back to. Every change is counted in the
+ * {@code span_detail_changes} metric, and the current level is exported in the {@code span_detail_level} gauge.
+ */
+public class OverheadGovernor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverheadGovernor.class);
+
+    private static final AttributeKey<String> LEVEL = AttributeKey.stringKey("level");
+
+    private static final SpanDetail[] levels = SpanDetail.values();
+
+    private final SpanDetail maxDetail;
+
+    private final double highLoad;
+
+    private final double lowLoad;
+
+    private final com.sun.management.OperatingSystemMXBean operatingSystem;
+
+    private final LongCounter changesCounter;
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile SpanDetail spanDetail;
+
+    public OverheadGovernor(SpanDetail maxDetail, double highLoad, double lowLoad, long checkIntervalMillis, Meter meter) {
+        this.maxDetail = maxDetail;
+        this.highLoad = highLoad;
+        this.lowLoad = lowLoad;
+        this.spanDetail = maxDetail;
+        this.operatingSystem = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        this.changesCounter = meter.counterBuilder("span_detail_changes")
+                .setDescription("Changes of the span detail level made by the overhead governor")
+                .setUnit("1")
+                .build();
+        meter.gaugeBuilder("span_detail_level")
+                .setDescription("Span detail level, 0 being the most detailed")
+                .setUnit("1")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(spanDetail.ordinal()));
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "overhead-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (checkIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public SpanDetail getSpanDetail() {
+        return spanDetail;
+    }
+
+    void check() {
+        double load = operatingSystem.getProcessCpuLoad();
+        // Negative when the load is not available yet
+        if (load < 0) {
+            return;
+        }
+
+        SpanDetail current = spanDetail;
+        SpanDetail next = current;
+        if (load > highLoad && current.ordinal() < levels.length - 1) {
+            next = levels[current.ordinal() + 1];
+        } else if (load < lowLoad && current.ordinal() > maxDetail.ordinal()) {
+            next = levels[current.ordinal() - 1];
+        }
+
+        if (next != current) {
+            spanDetail = next;
+            changesCounter.add(1, Attributes.of(LEVEL, next.name()));
+            logger.info("Process CPU load at {}, span detail changed from {} to {}", load, current, next);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,210 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the span batches the delegate exporter fails to send in a {@link WriteAheadLog}, serialized as OTLP protobuf
+ * requests, and replays them from a background thread once the collector is back.
+ *
+ * Once an export has failed, the new batches are appended to the log without calling the delegate, so the batch
+ * processor is not blocked by the export timeout during the outage. As soon as a replayed batch is accepted, the new
+ * batches go to the delegate again while the log is replayed alongside them: a traffic above the replay rate does
+ * not keep the log from emptying. The replay posts the requests to the OTLP/HTTP endpoint of the collector, retries
+ * with an exponential backoff and is limited to {@code maxReplayBytesPerSecond}. The spans that don't fit in the log
+ * are counted in {@code span_wal_dropped_spans}.
+ */
+public class PersistentSpanExporter implements SpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentSpanExporter.class);
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final SpanExporter delegate;
+
+    private final WriteAheadLog writeAheadLog;
+
+    private final URI replayEndpoint;
+
+    private final long maxReplayBytesPerSecond;
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    private final LongCounter droppedSpansCounter;
+
+    private final OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+
+    private final Thread replayThread;
+
+    // Set when an export fails, cleared when the collector accepts a batch again
+    private volatile boolean collectorDown;
+
+    private volatile boolean shutdown;
+
+    // Set while the replay thread waits on an empty log, the only wait persist() cuts short
+    private volatile boolean idle;
+
+    public PersistentSpanExporter(SpanExporter delegate, WriteAheadLog writeAheadLog, URI replayEndpoint,
+                                  long maxReplayBytesPerSecond, Meter meter) {
+        if (maxReplayBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("maxReplayBytesPerSecond must be positive: " + maxReplayBytesPerSecond);
+        }
+        this.delegate = delegate;
+        this.writeAheadLog = writeAheadLog;
+        this.replayEndpoint = replayEndpoint;
+        this.maxReplayBytesPerSecond = maxReplayBytesPerSecond;
+        this.droppedSpansCounter = meter.counterBuilder("span_wal_dropped_spans")
+                .setDescription("Spans that could neither be exported nor kept in the write-ahead log")
+                .setUnit("1")
+                .build();
+
+        this.replayThread = new Thread(this::replay, "span-wal-replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        if (collectorDown) {
+            return persist(spans);
+        }
+
+        CompletableResultCode result = new CompletableResultCode();
+        CompletableResultCode exported = delegate.export(spans);
+        exported.whenComplete(() -> {
+            if (exported.isSuccess()) {
+                result.succeed();
+                return;
+            }
+            collectorDown = true;
+            if (persist(spans).isSuccess()) {
+                result.succeed();
+            } else {
+                result.fail();
+            }
+        });
+        return result;
+    }
+
+    private CompletableResultCode persist(Collection<SpanData> spans) {
+        try {
+            ByteBuffer request;
+            // Called from the export and from the completion of the delegate exports
+            synchronized (encoder) {
+                request = ByteBuffer.allocate(encoder.prepare(spans));
+                encoder.write(request);
+            }
+            if (writeAheadLog.append(request.array())) {
+                if (idle) {
+                    LockSupport.unpark(replayThread);
+                }
+                return CompletableResultCode.ofSuccess();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write {} spans to the write-ahead log", spans.size(), e);
+        }
+        droppedSpansCounter.add(spans.size());
+        return CompletableResultCode.ofFailure();
+    }
+
+    private void replay() {
+        long backoffNanos = MIN_BACKOFF_NANOS;
+        while (!shutdown && !Thread.currentThread().isInterrupted()) {
+            byte[] request;
+            try {
+                request = writeAheadLog.peek();
+            } catch (IOException e) {
+                logger.warn("Could not read the write-ahead log", e);
+                request = null;
+            }
+            if (request == null) {
+                // Woken up by persist() when a batch is appended
+                idle = true;
+                if (writeAheadLog.isEmpty()) {
+                    LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                }
+                idle = false;
+                continue;
+            }
+
+            int status = send(request);
+            if (status >= 200 && status < 300) {
+                writeAheadLog.remove();
+                backoffNanos = MIN_BACKOFF_NANOS;
+                // The new batches go to the delegate again, the rest of the log is replayed alongside them
+                collectorDown = false;
+                // Spreads the replay so the recovery does not swamp the application and the collector
+                parkFor(request.length * 1_000_000_000L / maxReplayBytesPerSecond);
+            } else if (status >= 400 && status < 500 && status != 429) {
+                // Retrying a request rejected by the collector would block the replay forever
+                logger.warn("Collector rejected a replayed batch with status {}, dropping it", status);
+                writeAheadLog.remove();
+            } else {
+                parkFor(backoffNanos);
+                backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    // Parks again after the spurious wake-ups, only the shutdown ends the wait early
+    private void parkFor(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while (!shutdown && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    // Returns the HTTP status, or -1 when the collector could not be reached
+    private int send(byte[] request) {
+        try {
+            HttpResponse<Void> response = httpClient.send(HttpRequest.newBuilder(replayEndpoint)
+                    .timeout(Duration.ofSeconds(2))
+                    .header("Content-Type", "application/x-protobuf")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(request))
+                    .build(), HttpResponse.BodyHandlers.discarding());
+            return response.statusCode();
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return delegate.flush();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        // The batches not replayed yet stay in the log for the next start
+        shutdown = true;
+        LockSupport.unpark(replayThread);
+        try {
+            replayThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return delegate.shutdown();
+    }
+}
@@ -0,0 +1,92 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples at most {@code tracesPerSecond} traces per second, with bursts of up to one second worth of traces.
+ * It is meant to decide for the root spans only: wrap it with {@link Sampler#parentBased(Sampler)} so the children
+ * follow the decision of their parent.
+ *
+ * The token bucket is kept as the theoretical arrival time of the next trace in a single AtomicLong, a decision is
+ * a compare-and-set without any lock. The decisions are counted in the {@code sampler_decisions} metric.
+ *
+ * A rate of 0 drops every trace.
+ */
+public class RateLimitingSampler implements Sampler {
+
+    private static final AttributeKey<String> DECISION = AttributeKey.stringKey("decision");
+
+    private static final Attributes SAMPLED = Attributes.of(DECISION, "sampled");
+
+    private static final Attributes DROPPED = Attributes.of(DECISION, "dropped");
+
+    private final double tracesPerSecond;
+
+    // Time credited to the bucket for each sampled trace
+    private final long intervalNanos;
+
+    private final long burstNanos;
+
+    private final AtomicLong nextArrivalNanos;
+
+    private final LongCounter decisionsCounter;
+
+    public RateLimitingSampler(double tracesPerSecond, Meter meter) {
+        // Below 0.001, the interval added to the arrival time could overflow
+        if (!(tracesPerSecond == 0 || tracesPerSecond >= 0.001)) {
+            throw new IllegalArgumentException("tracesPerSecond must be 0 or at least 0.001: " + tracesPerSecond);
+        }
+        this.tracesPerSecond = tracesPerSecond;
+        this.intervalNanos = tracesPerSecond == 0 ? 0 : (long) (1_000_000_000L / tracesPerSecond);
+        this.burstNanos = 1_000_000_000L;
+        this.nextArrivalNanos = new AtomicLong(System.nanoTime() - burstNanos);
+        this.decisionsCounter = meter.counterBuilder("sampler_decisions")
+                .setDescription("Sampling decisions of the rate limiting sampler")
+                .setUnit("1")
+                .build();
+    }
+
+    @Override
+    public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
+                                       Attributes attributes, List<LinkData> parentLinks) {
+        if (tryAcquire()) {
+            decisionsCounter.add(1, SAMPLED);
+            return SamplingResult.recordAndSample();
+        }
+        decisionsCounter.add(1, DROPPED);
+        return SamplingResult.drop();
+    }
+
+    private boolean tryAcquire() {
+        if (tracesPerSecond == 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long next = nextArrivalNanos.get();
+            long start = Math.max(next, now - burstNanos);
+            if (start - now >= 0) {
+                return false;
+            }
+            if (nextArrivalNanos.compareAndSet(next, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "RateLimitingSampler{" + tracesPerSecond + "}";
+    }
+}
@@ -0,0 +1,190 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the last finished spans in a ring buffer, the running spans and, per span name, the number of running spans
+ * and the latency distribution of the finished ones, like the zPages of OpenTelemetry. It does not depend on the
+ * export pipeline, so {@code /debug/traces} still shows what the application does when the collector is unreachable.
+ *
+ * Recording a span only increments counters and stores its reference, in the set of running spans while it runs and
+ * in the ring buffer once it ended, without lock. At most {@code size} running spans are kept, so the spans never
+ * ended can't grow the set forever. The summaries are built when {@link #snapshot} is called, the errors are the spans
+ * {@link SpanErrors} considers errors, like the TailSamplingProcessor.
+ */
+public class RecentSpansProcessor implements SpanProcessor {
+
+    // Upper bounds of the latency buckets, the last bucket has no upper bound
+    private static final long[] latencyBounds = {
+            TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(100)};
+
+    private static final String[] latencyLabels = {"<10us", "<100us", "<1ms", "<10ms", "<100ms", "<1s", "<10s", "<100s", ">=100s"};
+
+    private final AtomicReferenceArray<ReadableSpan> recentSpans;
+
+    // SdkSpan doesn't override equals(), the spans are compared by reference
+    private final Set<ReadableSpan> runningSpans = ConcurrentHashMap.newKeySet();
+
+    private final int maxRunningSpans;
+
+    private final int mask;
+
+    private final AtomicLong nextIndex = new AtomicLong();
+
+    private final int maxSpanNames;
+
+    private final ConcurrentHashMap<String, NameStats> statsByName = new ConcurrentHashMap<>();
+
+    public RecentSpansProcessor(int size, int maxSpanNames) {
+        // A power of two, so the slot is found with a mask
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.recentSpans = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.maxRunningSpans = capacity;
+        this.maxSpanNames = maxSpanNames;
+    }
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+        NameStats stats = stats(span.getName());
+        if (stats != null) {
+            stats.started.increment();
+        }
+        if (runningSpans.size() < maxRunningSpans) {
+            runningSpans.add(span);
+        }
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return true;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        runningSpans.remove(span);
+        NameStats stats = stats(span.getName());
+        if (stats != null) {
+            stats.ended.increment();
+            stats.latency.incrementAndGet(bucket(span.getLatencyNanos()));
+        }
+        recentSpans.lazySet((int) (nextIndex.getAndIncrement() & mask), span);
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    // Null once maxSpanNames names are tracked, so unexpected names can't grow the map forever
+    private NameStats stats(String name) {
+        NameStats stats = statsByName.get(name);
+        if (stats == null && statsByName.size() < maxSpanNames) {
+            stats = statsByName.computeIfAbsent(name, key -> new NameStats());
+        }
+        return stats;
+    }
+
+    private static int bucket(long latencyNanos) {
+        int bucket = 0;
+        while (bucket < latencyBounds.length && latencyNanos >= latencyBounds[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the counters of each span name, the running spans, longest running first, and the finished spans still
+     * in the ring buffer, most recent first. The spans can be restricted to a name, and to the errors.
+     */
+    public Map<String, Object> snapshot(String name, boolean errorsOnly) {
+        List<RunningSpanSummary> running = new ArrayList<>();
+        for (ReadableSpan span : runningSpans) {
+            boolean error = SpanErrors.isError(span);
+            if ((name == null || name.equals(span.getName())) && (!errorsOnly || error)) {
+                // The latency of a running span is the time elapsed since its start
+                running.add(new RunningSpanSummary(span.getName(), span.getSpanContext().getTraceId(), span.getSpanContext().getSpanId(),
+                        span.getParentSpanContext().getSpanId(), span.getLatencyNanos() / 1_000_000.0, error));
+            }
+        }
+        running.sort(Comparator.comparingDouble(RunningSpanSummary::elapsedMs).reversed());
+
+        List<SpanSummary> spans = new ArrayList<>();
+        Map<String, Long> recentErrors = new TreeMap<>();
+        long last = nextIndex.get();
+        for (long index = last - 1; index >= Math.max(0, last - recentSpans.length()); index--) {
+            ReadableSpan span = recentSpans.get((int) (index & mask));
+            if (span == null) {
+                continue;
+            }
+            boolean error = SpanErrors.isError(span);
+            SpanData spanData = span.toSpanData();
+            if (error) {
+                recentErrors.merge(spanData.getName(), 1L, Long::sum);
+            }
+            if ((name == null || name.equals(spanData.getName())) && (!errorsOnly || error)) {
+                spans.add(new SpanSummary(spanData.getName(), spanData.getTraceId(), spanData.getSpanId(),
+                        spanData.getParentSpanId(), (spanData.getEndEpochNanos() - spanData.getStartEpochNanos()) / 1_000_000.0,
+                        spanData.getStatus().getStatusCode().name(), error));
+            }
+        }
+
+        Map<String, SpanNameSummary> names = new TreeMap<>();
+        statsByName.forEach((spanName, stats) -> {
+            long ended = stats.ended.sum();
+            Map<String, Long> latency = new LinkedHashMap<>();
+            for (int bucket = 0; bucket < latencyLabels.length; bucket++) {
+                latency.put(latencyLabels[bucket], stats.latency.get(bucket));
+            }
+            names.put(spanName, new SpanNameSummary(Math.max(0, stats.started.sum() - ended), ended,
+                    recentErrors.getOrDefault(spanName, 0L), latency));
+        });
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("spanNames", names);
+        snapshot.put("runningSpans", running);
+        snapshot.put("recentSpans", spans);
+        return snapshot;
+    }
+
+    private static final class NameStats {
+
+        private final LongAdder started = new LongAdder();
+
+        private final LongAdder ended = new LongAdder();
+
+        private final AtomicLongArray latency = new AtomicLongArray(latencyLabels.length);
+    }
+
+    // recentErrors only counts the errors among the spans still in the ring buffer
+    public record SpanNameSummary(long running, long finished, long recentErrors, Map<String, Long> latency) {
+    }
+
+    public record RunningSpanSummary(String name, String traceId, String spanId, String parentSpanId, double elapsedMs,
+                                     boolean error) {
+    }
+
+    public record SpanSummary(String name, String traceId, String spanId, String parentSpanId, double durationMs,
+                              String status, boolean error) {
+    }
+}
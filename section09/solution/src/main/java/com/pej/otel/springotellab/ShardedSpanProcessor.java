@@ -0,0 +1,253 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replaces the BatchSpanProcessor when many threads end spans at the same time. The ended spans are spread by thread
+ * over {@code shards} bounded ring buffers instead of a single queue, so the threads mostly compete with the few
+ * others sharing their shard. A single worker thread drains the shards and exports batches of {@code maxExportBatchSize}
+ * spans, at least every {@code scheduleDelay}.
+ *
+ * Adding a span is a compare-and-set on the tail of its shard, without lock. When the shard is full the span is
+ * dropped and counted in {@code sharded_processor_dropped_spans}.
+ */
+public class ShardedSpanProcessor implements SpanProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedSpanProcessor.class);
+
+    private static final long EXPORT_TIMEOUT_MILLIS = 30_000;
+
+    private final SpanExporter spanExporter;
+
+    private final Shard[] shards;
+
+    private final int shardMask;
+
+    private final int maxExportBatchSize;
+
+    private final long scheduleDelayNanos;
+
+    private final LongCounter droppedSpansCounter;
+
+    private final Thread worker;
+
+    private final ConcurrentLinkedQueue<CompletableResultCode> flushRequests = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean shutdown;
+
+    // Set by the worker before it returns, the flush requests added after it are completed by forceFlush
+    private volatile boolean stopped;
+
+    private final CompletableResultCode shutdownResult = new CompletableResultCode();
+
+    public ShardedSpanProcessor(SpanExporter spanExporter, int shards, int queueSizePerShard, int maxExportBatchSize,
+                                long scheduleDelayMillis, Meter meter) {
+        this.spanExporter = spanExporter;
+        int shardCount = powerOfTwo(shards > 0 ? shards : Runtime.getRuntime().availableProcessors());
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(powerOfTwo(queueSizePerShard));
+        }
+        this.shardMask = shardCount - 1;
+        this.maxExportBatchSize = maxExportBatchSize;
+        this.scheduleDelayNanos = TimeUnit.MILLISECONDS.toNanos(scheduleDelayMillis);
+        this.droppedSpansCounter = meter.counterBuilder("sharded_processor_dropped_spans")
+                .setDescription("Spans dropped because the shard of the thread ending them was full")
+                .setUnit("1")
+                .build();
+
+        this.worker = new Thread(this::work, "sharded-span-processor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private static int powerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return false;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        if (!span.getSpanContext().isSampled() || shutdown) {
+            return;
+        }
+        Shard shard = shards[(int) Thread.currentThread().getId() & shardMask];
+        long position = shard.offer(span);
+        if (position < 0) {
+            droppedSpansCounter.add(1);
+        } else if ((position + 1) % maxExportBatchSize == 0) {
+            // A batch may be ready, only one span in maxExportBatchSize pays for waking up the worker
+            LockSupport.unpark(worker);
+        }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    @Override
+    public CompletableResultCode forceFlush() {
+        if (shutdown) {
+            // The shutdown exports the remaining spans
+            return CompletableResultCode.ofSuccess();
+        }
+        CompletableResultCode result = new CompletableResultCode();
+        flushRequests.add(result);
+        if (stopped) {
+            // Shut down meanwhile, the worker may have returned before seeing the request
+            completeFlushRequests();
+        }
+        LockSupport.unpark(worker);
+        return result;
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        if (!shutdown) {
+            shutdown = true;
+            LockSupport.unpark(worker);
+        }
+        return shutdownResult;
+    }
+
+    private void work() {
+        List<SpanData> batch = new ArrayList<>(maxExportBatchSize);
+        long nextExport = System.nanoTime() + scheduleDelayNanos;
+        while (true) {
+            boolean stopping = shutdown;
+            int drained = drain(batch);
+            long now = System.nanoTime();
+            boolean flushing = !flushRequests.isEmpty();
+            if (batch.size() >= maxExportBatchSize || (!batch.isEmpty() && (now - nextExport >= 0 || flushing || stopping))) {
+                export(batch);
+                // The exporter may keep the list, the next batch goes in a new one
+                batch = new ArrayList<>(maxExportBatchSize);
+                nextExport = now + scheduleDelayNanos;
+                continue;
+            }
+            if (drained > 0) {
+                continue;
+            }
+
+            // Everything drained and exported
+            if (flushing) {
+                completeFlushRequests();
+            }
+            if (stopping) {
+                stopped = true;
+                completeFlushRequests();
+                spanExporter.shutdown().whenComplete(shutdownResult::succeed);
+                return;
+            }
+            LockSupport.parkNanos(this, Math.max(nextExport - now, 0));
+            if (now - nextExport >= 0) {
+                nextExport = System.nanoTime() + scheduleDelayNanos;
+            }
+        }
+    }
+
+    private void completeFlushRequests() {
+        CompletableResultCode flushResult;
+        while ((flushResult = flushRequests.poll()) != null) {
+            flushResult.succeed();
+        }
+    }
+
+    // Takes spans from every shard in turn until the batch is full, returns the number of spans taken
+    private int drain(List<SpanData> batch) {
+        int drained = 0;
+        for (Shard shard : shards) {
+            ReadableSpan span;
+            while (batch.size() < maxExportBatchSize && (span = shard.poll()) != null) {
+                batch.add(span.toSpanData());
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    private void export(List<SpanData> batch) {
+        try {
+            CompletableResultCode result = spanExporter.export(batch);
+            result.join(EXPORT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (!result.isSuccess()) {
+                logger.debug("Exporter failed to export {} spans", batch.size());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Exporter threw an exception", e);
+        }
+    }
+
+    /**
+     * Bounded multi-producer single-consumer ring buffer. The producers claim a slot with a compare-and-set on the
+     * tail and publish the span in it, the consumer frees the slot before moving the head.
+     */
+    private static final class Shard {
+
+        private final AtomicReferenceArray<ReadableSpan> slots;
+
+        private final int mask;
+
+        private final AtomicLong tail = new AtomicLong();
+
+        private final AtomicLong head = new AtomicLong();
+
+        Shard(int capacity) {
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        // Returns the position of the span, or -1 when the shard is full
+        long offer(ReadableSpan span) {
+            long position;
+            do {
+                position = tail.get();
+                if (position - head.get() >= slots.length()) {
+                    return -1;
+                }
+            } while (!tail.compareAndSet(position, position + 1));
+            slots.lazySet((int) (position & mask), span);
+            return position;
+        }
+
+        // Called by the worker only, returns null when empty or when the next span is not published yet
+        ReadableSpan poll() {
+            long position = head.get();
+            int index = (int) (position & mask);
+            ReadableSpan span = slots.get(index);
+            if (span == null) {
+                return null;
+            }
+            slots.lazySet(index, null);
+            head.lazySet(position + 1);
+            return span;
+        }
+    }
+}
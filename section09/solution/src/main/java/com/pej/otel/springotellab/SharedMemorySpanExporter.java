@@ -0,0 +1,78 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Hands the span batches to the {@link SpanForwarder} process through a {@link SpanRing}: each batch is encoded by
+ * an {@link OtlpSpanEncoder} straight into the memory-mapped ring, as an OTLP protobuf request. The connection to
+ * the collector, the retries and the backoff are in the forwarder, exporting a batch is only a memory write.
+ *
+ * The exporter never waits for the forwarder. When the ring is full, because the forwarder is slow, stopped or can't
+ * reach the collector, the batch is dropped and its spans are counted in {@code span_ring_dropped_spans}. The
+ * batches written to the ring are counted in {@code span_export_bytes} from the size of their encoding, each batch is
+ * only walked by the encoder.
+ */
+public class SharedMemorySpanExporter implements SpanExporter {
+
+    private final OtlpSpanEncoder encoder = new OtlpSpanEncoder();
+
+    private final SpanRing spanRing;
+
+    private final LongCounter droppedSpansCounter;
+
+    private final LongCounter bytesCounter;
+
+    public SharedMemorySpanExporter(SpanRing spanRing, Meter meter) {
+        this.spanRing = spanRing;
+        this.droppedSpansCounter = meter.counterBuilder("span_ring_dropped_spans")
+                .setDescription("Spans dropped because the ring shared with the forwarder was full")
+                .setUnit("1")
+                .build();
+        this.bytesCounter = meter.counterBuilder("span_export_bytes")
+                .setDescription("Size of the exported batches serialized as OTLP protobuf, before compression")
+                .setUnit("By")
+                .build();
+        meter.gaugeBuilder("span_ring_used_bytes")
+                .setDescription("Bytes written in the ring and not read by the forwarder yet")
+                .setUnit("By")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(spanRing.usedBytes()));
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        if (spans.isEmpty()) {
+            return CompletableResultCode.ofSuccess();
+        }
+        // The ring has a single writer
+        synchronized (encoder) {
+            int size = encoder.prepare(spans);
+            ByteBuffer record = spanRing.claim(size);
+            if (record == null) {
+                droppedSpansCounter.add(spans.size());
+                return CompletableResultCode.ofFailure();
+            }
+            encoder.write(record);
+            spanRing.commit();
+            bytesCounter.add(size);
+        }
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+    }
+}
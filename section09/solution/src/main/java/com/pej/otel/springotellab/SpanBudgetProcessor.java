@@ -0,0 +1,125 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of spans recorded per trace. Each local root span gets a budget when it starts, the spans of its
+ * trace sampled past that budget are dropped by the sampler returned by {@link #wrap(Sampler)} and their number is
+ * recorded on the local root span in the {@code spans.suppressed} attribute.
+ *
+ * Dropped spans are not recording: they cost no memory in the BatchSpanProcessor queue but still propagate the context,
+ * so the spans created below them are attached to the right trace.
+ */
+public class SpanBudgetProcessor implements SpanProcessor {
+
+    static final AttributeKey<Long> SUPPRESSED_SPANS = AttributeKey.longKey("spans.suppressed");
+
+    private final int maxSpansPerTrace;
+
+    // Bounds the memory used by the budgets when local roots never end, the traces started past it are not limited
+    private final int maxTrackedTraces;
+
+    private final ConcurrentHashMap<String, Budget> budgets = new ConcurrentHashMap<>();
+
+    public SpanBudgetProcessor(int maxSpansPerTrace, int maxTrackedTraces) {
+        this.maxSpansPerTrace = maxSpansPerTrace;
+        this.maxTrackedTraces = maxTrackedTraces;
+    }
+
+    // Applies the budget to the spans the delegate decides to sample
+    public Sampler wrap(Sampler delegate) {
+        return new BudgetSampler(delegate);
+    }
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+        if (isLocalRoot(span) && budgets.size() < maxTrackedTraces) {
+            budgets.putIfAbsent(span.getSpanContext().getTraceId(), new Budget(span));
+        }
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return true;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        if (isLocalRoot(span)) {
+            String traceId = span.getSpanContext().getTraceId();
+            Budget budget = budgets.get(traceId);
+            if (budget != null && budget.root == span) {
+                budgets.remove(traceId, budget);
+            }
+        }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    private static boolean isLocalRoot(ReadableSpan span) {
+        SpanContext parent = span.getParentSpanContext();
+        return !parent.isValid() || parent.isRemote();
+    }
+
+    private static final class Budget {
+
+        private final ReadWriteSpan root;
+
+        // The local root is the first span of the budget
+        private final AtomicLong spans = new AtomicLong(1);
+
+        private final AtomicLong suppressed = new AtomicLong();
+
+        Budget(ReadWriteSpan root) {
+            this.root = root;
+        }
+    }
+
+    private final class BudgetSampler implements Sampler {
+
+        private final Sampler delegate;
+
+        BudgetSampler(Sampler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
+                                           Attributes attributes, List<LinkData> parentLinks) {
+            SamplingResult result = delegate.shouldSample(parentContext, traceId, name, spanKind, attributes, parentLinks);
+            if (result.getDecision() == SamplingDecision.DROP) {
+                return result;
+            }
+
+            Budget budget = budgets.get(traceId);
+            if (budget == null || budget.spans.incrementAndGet() <= maxSpansPerTrace) {
+                return result;
+            }
+            budget.root.setAttribute(SUPPRESSED_SPANS, budget.suppressed.incrementAndGet());
+            return SamplingResult.drop();
+        }
+
+        @Override
+        public String getDescription() {
+            return "SpanBudget{maxSpansPerTrace=" + maxSpansPerTrace + "," + delegate.getDescription() + "}";
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.pej.otel.springotellab;
+
+/**
+ * Level of detail of the spans created by {@link Thermometer}, from the most to the least detailed.
+ */
+public enum SpanDetail {
+
+    // One measureOnce child span per reading
+    FULL,
+
+    // A single simulateTemperature span carrying the count, min, max, mean and total time of the readings
+    AGGREGATE,
+
+    // No span in the Thermometer, only the temperatureSimulation span of the controller
+    CONTROLLER_ONLY
+}
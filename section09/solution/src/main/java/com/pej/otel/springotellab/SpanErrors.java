@@ -0,0 +1,27 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.semconv.SemanticAttributes;
+
+/**
+ * The rule telling whether a span is an error, shared by the {@link TailSamplingProcessor} and the
+ * {@link RecentSpansProcessor} so that {@code /debug/traces} shows the errors the tail sampling keeps.
+ *
+ * A span is an error when it has an {@code error.type} attribute or a 5xx HTTP status code: ReadableSpan doesn't
+ * expose the status nor the events, and reading them with toSpanData() would copy every span. Setting the ERROR
+ * status is not enough, the code marking a span as an error must set {@code error.type} too, as
+ * {@link ExceptionRecorder} does.
+ */
+final class SpanErrors {
+
+    private SpanErrors() {
+    }
+
+    static boolean isError(ReadableSpan span) {
+        if (span.getAttribute(SemanticAttributes.ERROR_TYPE) != null) {
+            return true;
+        }
+        Long statusCode = span.getAttribute(SemanticAttributes.HTTP_RESPONSE_STATUS_CODE);
+        return statusCode != null && statusCode >= 500;
+    }
+}
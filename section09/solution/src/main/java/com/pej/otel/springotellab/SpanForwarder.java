@@ -0,0 +1,109 @@
+package com.pej.otel.springotellab;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Companion process of the application: reads the span batches written by {@link SharedMemorySpanExporter} in the
+ * {@link SpanRing} file and sends them to the OTLP/HTTP endpoint of the collector, in order. A batch stays in the
+ * ring until the collector accepts it, the forwarder retries with an exponential backoff from 1 second to 1 minute.
+ *
+ * Usage: {@code gradle forwardSpans --args="<ring file> [endpoint]"}, the endpoint defaults to
+ * {@code http://localhost:4318/v1/traces}. The forwarder waits for the application to create the ring. While the
+ * ring is empty, it checks every second whether the application recreated it, for instance with another size, and
+ * attaches to the new file.
+ */
+public class SpanForwarder {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // Time between two polls of an empty ring
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Time between two checks of the ring file while the ring is empty
+    private static final long REPLACED_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SpanForwarder <ring file> [endpoint]");
+            System.exit(1);
+        }
+        Path file = Path.of(args[0]);
+        URI endpoint = URI.create(args.length > 1 ? args[1] : "http://localhost:4318/v1/traces");
+
+        SpanRing spanRing = attach(file);
+        System.out.printf("Forwarding the spans of %s to %s%n", file, endpoint);
+
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        long backoffNanos = MIN_BACKOFF_NANOS;
+        long nextReplacedCheck = System.nanoTime() + REPLACED_CHECK_NANOS;
+        while (!Thread.currentThread().isInterrupted()) {
+            ByteBuffer record = spanRing.peek();
+            if (record == null) {
+                // Only checked once the ring is empty, so the batches of the previous file are all sent first
+                if (System.nanoTime() - nextReplacedCheck >= 0) {
+                    nextReplacedCheck = System.nanoTime() + REPLACED_CHECK_NANOS;
+                    if (spanRing.isReplaced()) {
+                        spanRing = attach(file);
+                        System.out.printf("Ring file %s recreated by the application, attached again%n", file);
+                        continue;
+                    }
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            byte[] request = new byte[record.remaining()];
+            record.get(request);
+            int status = send(httpClient, endpoint, request);
+            if (status >= 200 && status < 300) {
+                spanRing.remove();
+                backoffNanos = MIN_BACKOFF_NANOS;
+            } else if (status >= 400 && status < 500 && status != 429) {
+                // Retrying a request rejected by the collector would block the ring forever
+                System.err.printf("Collector rejected a batch with status %d, dropping it%n", status);
+                spanRing.remove();
+            } else {
+                System.err.printf("Could not send a batch (status %d), retrying in %d s%n", status, TimeUnit.NANOSECONDS.toSeconds(backoffNanos));
+                LockSupport.parkNanos(backoffNanos);
+                backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    // Waits for the application to create the ring
+    private static SpanRing attach(Path file) throws IOException {
+        SpanRing spanRing;
+        while ((spanRing = SpanRing.attach(file)) == null) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        }
+        return spanRing;
+    }
+
+    // Returns the HTTP status, or -1 when the collector could not be reached
+    private static int send(HttpClient httpClient, URI endpoint, byte[] request) {
+        try {
+            HttpResponse<Void> response = httpClient.send(HttpRequest.newBuilder(endpoint)
+                    .timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/x-protobuf")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(request))
+                    .build(), HttpResponse.BodyHandlers.discarding());
+            return response.statusCode();
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.pej.otel.springotellab;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ring buffer of records in a memory-mapped file, shared by two processes: the application writes the span batches
+ * with {@link #claim} and {@link #commit}, {@link SpanForwarder} reads them with {@link #peek} and {@link #remove}.
+ * There must be a single writer and a single reader.
+ *
+ * The file starts with a header holding the capacity, the generation and the write and read positions, each position
+ * on its own cache line. The positions only grow, a record is written at {@code position % capacity} as its length followed by
+ * its bytes, aligned on 8 bytes. A record that would cross the end of the ring is written at the start, after a
+ * padding marker. The writer publishes a record by moving the write position once it is written, the reader frees
+ * it by moving the read position: both are written with release semantics and read with acquire semantics, which
+ * orders the memory accesses of the two processes.
+ *
+ * The application draws a new generation each time it initializes the ring, including when it recreates the file
+ * for a new capacity. A reader still mapping the previous file would never see the new records: {@link #isReplaced}
+ * compares its generation with the one of the file on disk, so the reader can attach again.
+ */
+public class SpanRing {
+
+    private static final int MAGIC = 0x5350414E;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int CAPACITY_OFFSET = 4;
+
+    private static final int GENERATION_OFFSET = 8;
+
+    private static final int WRITE_POSITION_OFFSET = 64;
+
+    private static final int READ_POSITION_OFFSET = 128;
+
+    private static final int DATA_OFFSET = 192;
+
+    private static final int PADDING = -1;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final Path file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final long generation;
+
+    // Only used by the writer
+    private long writePosition;
+
+    private int claimedOffset;
+
+    private int claimedSize;
+
+    // Only used by the reader
+    private long readPosition;
+
+    private int peekedRecordSize;
+
+    private SpanRing(Path file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.generation = buffer.getLong(GENERATION_OFFSET);
+        this.writePosition = (long) LONG.getAcquire(buffer, WRITE_POSITION_OFFSET);
+        this.readPosition = (long) LONG.getAcquire(buffer, READ_POSITION_OFFSET);
+    }
+
+    // Opens the ring for writing, keeping the records of a previous run when the capacity has not changed
+    public static SpanRing create(Path file, int capacity) throws IOException {
+        if (capacity <= 0 || capacity % 8 != 0 || capacity > Integer.MAX_VALUE - DATA_OFFSET) {
+            throw new IllegalArgumentException("capacity must be a positive multiple of 8: " + capacity);
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (Files.exists(file) && Files.size(file) != DATA_OFFSET + capacity) {
+            // A forwarder still mapping the old file sees the new generation in the new one and attaches again
+            Files.delete(file);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+            if ((int) INT.getAcquire(buffer, MAGIC_OFFSET) != MAGIC || buffer.getInt(CAPACITY_OFFSET) != capacity) {
+                LONG.setRelease(buffer, WRITE_POSITION_OFFSET, 0L);
+                LONG.setRelease(buffer, READ_POSITION_OFFSET, 0L);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putLong(GENERATION_OFFSET, ThreadLocalRandom.current().nextLong());
+                // Written last, the reader waits for it
+                INT.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+            }
+            return new SpanRing(file, buffer, capacity);
+        }
+    }
+
+    // Opens the ring created by the application for reading, returns null when it is not created yet
+    public static SpanRing attach(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < DATA_OFFSET) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if ((int) INT.getAcquire(buffer, MAGIC_OFFSET) != MAGIC) {
+                return null;
+            }
+            return new SpanRing(file, buffer, buffer.getInt(CAPACITY_OFFSET));
+        }
+    }
+
+    // True when the file on disk was deleted, recreated or initialized again since this ring was mapped. Reads the
+    // header with a system call instead of the mapping, which still shows the previous file after a recreation.
+    public boolean isReplaced() throws IOException {
+        // Big-endian like the mapping, only the magic is written in the native order
+        ByteBuffer header = ByteBuffer.allocate(GENERATION_OFFSET + Long.BYTES);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) <= 0) {
+                    break;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        return header.hasRemaining() || header.duplicate().order(ByteOrder.nativeOrder()).getInt(MAGIC_OFFSET) != MAGIC
+                || header.getInt(CAPACITY_OFFSET) != capacity
+                || header.getLong(GENERATION_OFFSET) != generation;
+    }
+
+    // Returns a buffer of size bytes to write the next record in, or null when the reader is too far behind
+    public ByteBuffer claim(int size) {
+        int recordSize = recordSize(size);
+        int offset = offset(writePosition);
+        int padding = offset + recordSize > capacity ? capacity - offset : 0;
+        long readPosition = (long) LONG.getAcquire(buffer, READ_POSITION_OFFSET);
+        if (recordSize > capacity || writePosition + padding + recordSize - readPosition > capacity) {
+            return null;
+        }
+        if (padding > 0) {
+            buffer.putInt(DATA_OFFSET + offset, PADDING);
+            writePosition += padding;
+            offset = 0;
+        }
+        claimedOffset = offset;
+        claimedSize = size;
+        return buffer.slice(DATA_OFFSET + offset + Integer.BYTES, size);
+    }
+
+    // Publishes the record written in the buffer returned by the last claim
+    public void commit() {
+        buffer.putInt(DATA_OFFSET + claimedOffset, claimedSize);
+        writePosition += recordSize(claimedSize);
+        LONG.setRelease(buffer, WRITE_POSITION_OFFSET, writePosition);
+    }
+
+    // Returns the oldest record not removed yet, or null when the ring is empty
+    public ByteBuffer peek() {
+        while (readPosition != (long) LONG.getAcquire(buffer, WRITE_POSITION_OFFSET)) {
+            int offset = offset(readPosition);
+            int size = buffer.getInt(DATA_OFFSET + offset);
+            if (size == PADDING) {
+                readPosition += capacity - offset;
+                LONG.setRelease(buffer, READ_POSITION_OFFSET, readPosition);
+                continue;
+            }
+            peekedRecordSize = recordSize(size);
+            return buffer.slice(DATA_OFFSET + offset + Integer.BYTES, size).asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    // Frees the record returned by the last peek
+    public void remove() {
+        readPosition += peekedRecordSize;
+        LONG.setRelease(buffer, READ_POSITION_OFFSET, readPosition);
+    }
+
+    // Bytes written and not read yet
+    public long usedBytes() {
+        return (long) LONG.getAcquire(buffer, WRITE_POSITION_OFFSET) - (long) LONG.getAcquire(buffer, READ_POSITION_OFFSET);
+    }
+
+    private int offset(long position) {
+        return (int) (position % capacity);
+    }
+
+    private static int recordSize(int size) {
+        return (Integer.BYTES + size + 7) & ~7;
+    }
+}
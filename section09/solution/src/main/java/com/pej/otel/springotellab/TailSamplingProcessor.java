@@ -0,0 +1,272 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers the spans of each trace until its local root span ends, then decides whether the trace is passed to the
+ * delegate processor (the BatchSpanProcessor in front of the exporter). A trace is kept when one of its spans is an
+ * error, when the local root took longer than the latency threshold, and otherwise with the {@code keepRatio}
+ * probability.
+ *
+ * At most {@code maxBufferedSpans} spans are buffered: past that, or when a trace stays longer than
+ * {@code maxTraceDuration} in the buffer, the oldest traces are evicted and kept only if an error was already seen.
+ *
+ * The decisions of the last {@code maxDecidedTraces} traces are kept for {@code maxTraceDuration}, so the spans ending
+ * after their local root, such as the asynchronous measurements, follow the decision of their trace.
+ *
+ * The spans without buffer or decision, because their trace started while the buffer was full or its decision
+ * expired, are decided one by one: a span is kept when it is an error, or when its trace id falls within
+ * {@code keepRatio}, so all the spans of such a trace get the same decision. They are counted in
+ * {@code tail_sampling_undecided_spans}.
+ *
+ * Whether a span is an error is decided by {@link SpanErrors}: the ERROR status alone is not enough, the span must
+ * have an {@code error.type} attribute, as set by {@link ExceptionRecorder}, or a 5xx HTTP status code.
+ */
+public class TailSamplingProcessor implements SpanProcessor {
+
+    private static final Attributes KEPT = Attributes.of(AttributeKey.booleanKey("kept"), true);
+
+    private static final Attributes DROPPED = Attributes.of(AttributeKey.booleanKey("kept"), false);
+
+    private final SpanProcessor delegate;
+
+    private final long latencyThresholdNanos;
+
+    private final double keepRatio;
+
+    private final int maxBufferedSpans;
+
+    private final long maxTraceDurationNanos;
+
+    private final ConcurrentHashMap<String, TraceBuffer> traces = new ConcurrentHashMap<>();
+
+    // Traces in the order they started, to evict the oldest ones first
+    private final ConcurrentLinkedQueue<TraceBuffer> startOrder = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger bufferedSpans = new AtomicInteger();
+
+    private final int maxDecidedTraces;
+
+    // Kept decision of the recently decided traces, for their spans ending after the local root
+    private final ConcurrentHashMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    private final ConcurrentLinkedQueue<Decision> decisionOrder = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger decidedTraces = new AtomicInteger();
+
+    private final LongCounter undecidedSpansCounter;
+
+    public TailSamplingProcessor(SpanProcessor delegate, long latencyThresholdMillis, double keepRatio,
+                                 int maxBufferedSpans, long maxTraceDurationMillis, int maxDecidedTraces, Meter meter) {
+        this.delegate = delegate;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.keepRatio = keepRatio;
+        this.maxBufferedSpans = maxBufferedSpans;
+        this.maxTraceDurationNanos = TimeUnit.MILLISECONDS.toNanos(maxTraceDurationMillis);
+        this.maxDecidedTraces = maxDecidedTraces;
+        this.undecidedSpansCounter = meter.counterBuilder("tail_sampling_undecided_spans")
+                .setDescription("Spans ended without buffer nor decision for their trace, by kept decision")
+                .setUnit("1")
+                .build();
+    }
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+        if (delegate.isStartRequired()) {
+            delegate.onStart(parentContext, span);
+        }
+        if (!isLocalRoot(span)) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        evictExpired(now);
+        if (bufferedSpans.get() < maxBufferedSpans) {
+            TraceBuffer buffer = new TraceBuffer(span.getSpanContext().getTraceId(), now);
+            if (traces.putIfAbsent(buffer.traceId, buffer) == null) {
+                startOrder.add(buffer);
+            }
+        }
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return true;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        String traceId = span.getSpanContext().getTraceId();
+        TraceBuffer buffer = traces.get(traceId);
+        if (buffer == null) {
+            // Ended after its trace was decided, or its trace was not buffered
+            Boolean kept = decisions.get(traceId);
+            if (kept == null) {
+                kept = SpanErrors.isError(span) || keepsTraceId(traceId);
+                undecidedSpansCounter.add(1, kept ? KEPT : DROPPED);
+            }
+            if (kept) {
+                delegate.onEnd(span);
+            }
+            return;
+        }
+
+        boolean root = isLocalRoot(span);
+        List<ReadableSpan> kept = null;
+        synchronized (buffer) {
+            if (buffer.decided) {
+                // Ended after the decision for its trace
+                if (buffer.kept) {
+                    delegate.onEnd(span);
+                }
+                return;
+            }
+            buffer.error |= SpanErrors.isError(span);
+            buffer.spans.add(span);
+            bufferedSpans.incrementAndGet();
+            if (root) {
+                boolean keep = buffer.error
+                        || span.getLatencyNanos() >= latencyThresholdNanos
+                        || ThreadLocalRandom.current().nextDouble() < keepRatio;
+                kept = decide(buffer, keep);
+            }
+        }
+        if (root) {
+            traces.remove(buffer.traceId, buffer);
+        }
+        forward(kept);
+
+        while (bufferedSpans.get() > maxBufferedSpans && evictOldest()) {
+            // Evicts until the buffer is back under its limit
+        }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        traces.clear();
+        startOrder.clear();
+        decisions.clear();
+        decisionOrder.clear();
+        return delegate.shutdown();
+    }
+
+    @Override
+    public CompletableResultCode forceFlush() {
+        return delegate.forceFlush();
+    }
+
+    // Must be called holding the lock of the buffer, returns the spans to forward
+    private List<ReadableSpan> decide(TraceBuffer buffer, boolean keep) {
+        buffer.decided = true;
+        buffer.kept = keep;
+        recordDecision(buffer.traceId, keep);
+        bufferedSpans.addAndGet(-buffer.spans.size());
+        List<ReadableSpan> spans = keep ? buffer.spans : null;
+        buffer.spans = new ArrayList<>(0);
+        return spans;
+    }
+
+    private void recordDecision(String traceId, boolean keep) {
+        long now = System.nanoTime();
+        decisions.put(traceId, keep);
+        decisionOrder.add(new Decision(traceId, now));
+        int count = decidedTraces.incrementAndGet();
+        Decision oldest;
+        while ((oldest = decisionOrder.peek()) != null && (count > maxDecidedTraces || now - oldest.nanoTime > maxTraceDurationNanos)) {
+            // Another thread may have removed it first
+            if (decisionOrder.remove(oldest)) {
+                decisions.remove(oldest.traceId);
+                count = decidedTraces.decrementAndGet();
+            }
+        }
+    }
+
+    private void forward(List<ReadableSpan> spans) {
+        if (spans != null) {
+            for (ReadableSpan span : spans) {
+                delegate.onEnd(span);
+            }
+        }
+    }
+
+    private void evictExpired(long now) {
+        TraceBuffer oldest;
+        while ((oldest = startOrder.peek()) != null && (oldest.decided || now - oldest.startNanos > maxTraceDurationNanos)) {
+            evictOldest();
+        }
+    }
+
+    private boolean evictOldest() {
+        TraceBuffer buffer = startOrder.poll();
+        if (buffer == null) {
+            return false;
+        }
+        traces.remove(buffer.traceId, buffer);
+        List<ReadableSpan> kept;
+        synchronized (buffer) {
+            if (buffer.decided) {
+                return true;
+            }
+            kept = decide(buffer, buffer.error);
+        }
+        forward(kept);
+        return true;
+    }
+
+    // Same decision for every span of the trace, from the 8 random bytes ending the trace id
+    private boolean keepsTraceId(String traceId) {
+        long random = Long.parseUnsignedLong(traceId, 16, 32, 16) >>> 1;
+        return random < keepRatio * Long.MAX_VALUE;
+    }
+
+    private static boolean isLocalRoot(ReadableSpan span) {
+        SpanContext parent = span.getParentSpanContext();
+        return !parent.isValid() || parent.isRemote();
+    }
+
+    private record Decision(String traceId, long nanoTime) {
+    }
+
+    private static final class TraceBuffer {
+
+        private final String traceId;
+
+        private final long startNanos;
+
+        private List<ReadableSpan> spans = new ArrayList<>();
+
+        private boolean error;
+
+        // Read without the lock when removing the decided traces from startOrder
+        private volatile boolean decided;
+
+        private boolean kept;
+
+        TraceBuffer(String traceId, long startNanos) {
+            this.traceId = traceId;
+            this.startNanos = startNanos;
+        }
+    }
+}
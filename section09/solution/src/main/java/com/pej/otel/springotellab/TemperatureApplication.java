@@ -8,16 +8,27 @@ import io.opentelemetry.sdk.metrics.SdkMeterProvider;
 import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SdkTracerProviderBuilder;
+import io.opentelemetry.sdk.trace.SpanProcessor;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.semconv.ResourceAttributes;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.Banner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
+@EnableConfigurationProperties(TracingProperties.class)
 public class TemperatureApplication {
 
     public static void main(String[] args) {
@@ -27,21 +38,29 @@ public class TemperatureApplication {
     }
 
 
+    // Lowers the span detail of the Thermometer when the CPU is saturated
+    @Bean(destroyMethod = "close")
+    public OverheadGovernor overheadGovernor(OpenTelemetry openTelemetry,
+                                             @Value("${simulation.spanDetail:FULL}") SpanDetail spanDetail,
+                                             @Value("${governor.highLoad:0.85}") double highLoad,
+                                             @Value("${governor.lowLoad:0.5}") double lowLoad,
+                                             @Value("${governor.checkInterval:5000}") long checkIntervalMillis) {
+        return new OverheadGovernor(spanDetail, highLoad, lowLoad, checkIntervalMillis, openTelemetry.getMeter(OverheadGovernor.class.getName()));
+    }
+
+    // Last finished spans and latencies served by /debug/traces
+    @Bean
+    public RecentSpansProcessor recentSpansProcessor(@Value("${debug.traces.size:1024}") int size,
+                                                     @Value("${debug.traces.maxSpanNames:100}") int maxSpanNames) {
+        return new RecentSpansProcessor(size, maxSpanNames);
+    }
+
     @Bean
-    public OpenTelemetry openTelemetry() {
+    public OpenTelemetry openTelemetry(RecentSpansProcessor recentSpansProcessor, TracingProperties tracing) throws IOException {
         Resource resource = Resource.getDefault().toBuilder()
                 .put(ResourceAttributes.SERVICE_NAME, "springotel")
                 .build();
 
-        OtlpGrpcSpanExporter otlpGrpcSpanExporter = OtlpGrpcSpanExporter.builder()
-                .setTimeout(2, TimeUnit.SECONDS)
-                .build();
-
-        SdkTracerProvider sdkTracerProvider = SdkTracerProvider.builder()
-                .addSpanProcessor(BatchSpanProcessor.builder(otlpGrpcSpanExporter).setScheduleDelay(100, TimeUnit.MILLISECONDS).build())
-                .setResource(resource)
-                .build();
-
         OtlpGrpcMetricExporter otlpGrpcMetricExporter = OtlpGrpcMetricExporter.builder()
                 .setTimeout(2, TimeUnit.SECONDS)
                 .build();
@@ -51,10 +70,87 @@ public class TemperatureApplication {
                 .setResource(resource)
                 .build();
 
+        SpanProcessor exportProcessor = exportProcessor(spanExporter(tracing, sdkMeterProvider), tracing, sdkMeterProvider);
+        Sampler rootSampler;
+        if ("tail".equals(tracing.getSampling())) {
+            // Every trace is recorded, the decision is made once its local root span ends
+            TracingProperties.Tail tail = tracing.getTail();
+            exportProcessor = new TailSamplingProcessor(exportProcessor, tail.getLatencyThreshold(), tail.getKeepRatio(), tail.getMaxBufferedSpans(),
+                    tail.getMaxTraceDuration(), tail.getMaxDecidedTraces(), sdkMeterProvider.get(TailSamplingProcessor.class.getName()));
+            rootSampler = Sampler.alwaysOn();
+        } else {
+            // Created after the meter provider so the sampler can report its decisions
+            rootSampler = new RateLimitingSampler(tracing.getTracesPerSecond(), sdkMeterProvider.get(RateLimitingSampler.class.getName()));
+        }
+
+        SpanBudgetProcessor spanBudgetProcessor = new SpanBudgetProcessor(tracing.getMaxSpansPerTrace(), tracing.getMaxTrackedTraces());
+
+        SdkTracerProviderBuilder sdkTracerProviderBuilder = SdkTracerProvider.builder()
+                .setSampler(spanBudgetProcessor.wrap(Sampler.parentBased(rootSampler)))
+                .addSpanProcessor(spanBudgetProcessor)
+                .addSpanProcessor(recentSpansProcessor)
+                .addSpanProcessor(exportProcessor)
+                .setResource(resource);
+        TracingProperties.Capture capture = tracing.getCapture();
+        if (capture.isEnabled()) {
+            // Captures the sampled spans to replay them later with TraceReplay
+            FileSpanExporter fileSpanExporter = new FileSpanExporter(Path.of(capture.getDirectory()), capture.getMaxFileSize(), capture.getMaxFiles());
+            sdkTracerProviderBuilder.addSpanProcessor(BatchSpanProcessor.builder(fileSpanExporter).setScheduleDelay(100, TimeUnit.MILLISECONDS).build());
+        }
+        SdkTracerProvider sdkTracerProvider = sdkTracerProviderBuilder.build();
+
 
         return OpenTelemetrySdk.builder()
                 .setTracerProvider(sdkTracerProvider)
                 .setMeterProvider(sdkMeterProvider)
                 .buildAndRegisterGlobal();
     }
+
+    // The exporter selected by tracing.export.protocol, instrumented and backed by the write-ahead log when enabled
+    private static SpanExporter spanExporter(TracingProperties tracing, SdkMeterProvider sdkMeterProvider) throws IOException {
+        TracingProperties.Export export = tracing.getExport();
+        SpanExporter otlpSpanExporter;
+        // The exporters encoding the batches themselves count the bytes while encoding them
+        boolean measureBytes = export.isMeasureBytes();
+        if ("direct-http".equals(export.getProtocol())) {
+            // Encodes the batches straight into pooled direct buffers sent over OTLP/HTTP
+            otlpSpanExporter = new DirectOtlpHttpSpanExporter(URI.create(export.getEndpoint()), Duration.ofSeconds(2), export.getBufferSize(),
+                    export.getPooledBuffers(), sdkMeterProvider.get(DirectOtlpHttpSpanExporter.class.getName()));
+            measureBytes = false;
+        } else if ("shared-memory".equals(export.getProtocol())) {
+            // SpanForwarder, a separate process, sends the batches written in the ring to the collector
+            otlpSpanExporter = new SharedMemorySpanExporter(SpanRing.create(Path.of(export.getRingFile()), export.getRingSize()),
+                    sdkMeterProvider.get(SharedMemorySpanExporter.class.getName()));
+            measureBytes = false;
+        } else {
+            // The exporter and the batch processor report their own metrics through the meter provider
+            otlpSpanExporter = OtlpGrpcSpanExporter.builder()
+                    .setTimeout(2, TimeUnit.SECONDS)
+                    .setMeterProvider(sdkMeterProvider)
+                    .build();
+        }
+        SpanExporter spanExporter = new InstrumentedSpanExporter(otlpSpanExporter, sdkMeterProvider.get(InstrumentedSpanExporter.class.getName()), measureBytes);
+        // The ring never waits for the collector, a full ring drops the spans instead of persisting them
+        TracingProperties.Wal wal = tracing.getWal();
+        if (wal.isEnabled() && !"shared-memory".equals(export.getProtocol())) {
+            // Keeps the batches on disk while the collector is unreachable
+            spanExporter = new PersistentSpanExporter(spanExporter, new WriteAheadLog(Path.of(wal.getDirectory()), wal.getSegmentSize(), wal.getMaxSegments()),
+                    URI.create(wal.getReplayEndpoint()), wal.getMaxReplayBytesPerSecond(), sdkMeterProvider.get(PersistentSpanExporter.class.getName()));
+        }
+        return spanExporter;
+    }
+
+    // The processor selected by tracing.processor, handing the ended spans to the export thread
+    private static SpanProcessor exportProcessor(SpanExporter spanExporter, TracingProperties tracing, SdkMeterProvider sdkMeterProvider) {
+        if ("sharded".equals(tracing.getProcessor())) {
+            // Spreads the ended spans over several queues when many threads end spans at the same time
+            TracingProperties.Sharded sharded = tracing.getSharded();
+            return new ShardedSpanProcessor(spanExporter, sharded.getShards(), sharded.getQueueSizePerShard(), 512, 100,
+                    sdkMeterProvider.get(ShardedSpanProcessor.class.getName()));
+        }
+        return BatchSpanProcessor.builder(spanExporter)
+                .setScheduleDelay(100, TimeUnit.MILLISECONDS)
+                .setMeterProvider(sdkMeterProvider)
+                .build();
+    }
 }
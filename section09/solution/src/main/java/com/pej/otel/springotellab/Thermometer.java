@@ -1,12 +1,15 @@
 package com.pej.otel.springotellab;
 
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.metrics.LongCounter;
 import io.opentelemetry.api.metrics.Meter;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Scope;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
@@ -25,6 +28,16 @@ public class Thermometer {
 
     private LongCounter temperatureMeasurementsCounter;
 
+    private static final AttributeKey<Long> TEMPERATURE = AttributeKey.longKey("temperature");
+    private static final AttributeKey<Long> READING_INDEX = AttributeKey.longKey("reading.index");
+
+    @Autowired
+    private OverheadGovernor overheadGovernor;
+
+    // In AGGREGATE mode, adds a span event for every eventInterval-th reading (0 disables the events)
+    @Value("${simulation.eventInterval:0}")
+    private int eventInterval;
+
     @Autowired
     Thermometer(OpenTelemetry openTelemetry) {
         this.tracer = openTelemetry.getTracer(Thermometer.class.getName(), "0.1.0");
@@ -37,8 +50,22 @@ public class Thermometer {
 
     public List<Integer> simulateTemperature(int measurements) {
         List<Integer> temperatures = new ArrayList<Integer>();
+        SpanDetail spanDetail = overheadGovernor.getSpanDetail();
+        if (spanDetail == SpanDetail.CONTROLLER_ONLY) {
+            for (int i = 0; i < measurements; i++) {
+                temperatures.add(this.measure());
+            }
+            temperatureMeasurementsCounter.add(Math.max(measurements, 0));
+            return temperatures;
+        }
+
         Span parentSpan = tracer.spanBuilder("simulateTemperature").startSpan();
         try (Scope scope = parentSpan.makeCurrent()) {
+            if (spanDetail == SpanDetail.AGGREGATE) {
+                simulateAggregated(parentSpan, measurements, temperatures);
+                return temperatures;
+            }
+
             for (int i = 0; i < measurements; i++) {
                 temperatures.add(this.measureOnce());
                 temperatureMeasurementsCounter.add(1);
@@ -49,15 +76,47 @@ public class Thermometer {
         }
     }
 
+    // Records the readings as attributes of simulateTemperature instead of creating a child span for each of them
+    private void simulateAggregated(Span parentSpan, int measurements, List<Integer> temperatures) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < measurements; i++) {
+            int temperature = this.measure();
+            min = Math.min(min, temperature);
+            max = Math.max(max, temperature);
+            sum += temperature;
+            if (eventInterval > 0 && i % eventInterval == 0) {
+                parentSpan.addEvent("measureOnce", Attributes.of(TEMPERATURE, (long) temperature, READING_INDEX, (long) i));
+            }
+            temperatures.add(temperature);
+        }
+        long totalTime = System.nanoTime() - start;
+        temperatureMeasurementsCounter.add(Math.max(measurements, 0));
+
+        parentSpan.setAttribute("temperature.count", Math.max(measurements, 0));
+        if (measurements > 0) {
+            parentSpan.setAttribute("temperature.min", min);
+            parentSpan.setAttribute("temperature.max", max);
+            parentSpan.setAttribute("temperature.mean", (double) sum / measurements);
+        }
+        parentSpan.setAttribute("temperature.total_time_ms", totalTime / 1_000_000.0);
+    }
+
     private int measureOnce() {
         Span childSpan = tracer.spanBuilder("measureOnce").startSpan();
         try {
-            return ThreadLocalRandom.current().nextInt(this.minTemp, this.maxTemp + 1);
+            return this.measure();
         } finally {
             childSpan.end();
         }
     }
 
+    private int measure() {
+        return ThreadLocalRandom.current().nextInt(this.minTemp, this.maxTemp + 1);
+    }
+
     public void setTemp(int minTemp, int maxTemp) {
         this.minTemp = minTemp;
         this.maxTemp = maxTemp;
@@ -0,0 +1,108 @@
+package com.pej.otel.springotellab;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sends the span batches written by {@link FileSpanExporter} to an OTLP/HTTP endpoint, keeping the time between
+ * the batches divided by {@code speed}: 2 replays the captured traffic twice as fast.
+ *
+ * Usage: {@code gradle replayTraces --args="<directory> [speed] [endpoint]"}, the endpoint defaults to
+ * {@code http://localhost:4318/v1/traces}. The spans keep the timestamps they were captured with.
+ */
+public class TraceReplay {
+
+    // Requests sent at the same time, so a slow collector delays the replay instead of piling up requests
+    private static final int MAX_IN_FLIGHT = 64;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay <directory> [speed] [endpoint]");
+            System.exit(1);
+        }
+        Path directory = Path.of(args[0]);
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        URI endpoint = URI.create(args.length > 2 ? args[2] : "http://localhost:4318/v1/traces");
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.list(directory)) {
+            files = paths.filter(FileSpanExporter::isSpanFile).sorted().collect(Collectors.toList());
+        }
+
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        AtomicLong sent = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long bytes = 0;
+        long firstCapture = -1;
+        long start = System.nanoTime();
+        ByteBuffer header = ByteBuffer.allocate(FileSpanExporter.HEADER_SIZE);
+
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (read(channel, header.clear())) {
+                    long capture = header.flip().getLong();
+                    ByteBuffer body = ByteBuffer.allocate(header.getInt());
+                    if (!read(channel, body)) {
+                        // Batch cut by the end of the capture, when the application was stopped while writing it
+                        break;
+                    }
+
+                    if (firstCapture < 0) {
+                        firstCapture = capture;
+                    }
+                    long delayNanos = start + (long) (TimeUnit.MILLISECONDS.toNanos(capture - firstCapture) / speed) - System.nanoTime();
+                    if (delayNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    }
+
+                    inFlight.acquire();
+                    bytes += body.capacity();
+                    httpClient.sendAsync(HttpRequest.newBuilder(endpoint)
+                                    .timeout(Duration.ofSeconds(10))
+                                    .header("Content-Type", "application/x-protobuf")
+                                    .POST(HttpRequest.BodyPublishers.ofByteArray(body.array()))
+                                    .build(), HttpResponse.BodyHandlers.discarding())
+                            .whenComplete((response, error) -> {
+                                if (error == null && response.statusCode() / 100 == 2) {
+                                    sent.incrementAndGet();
+                                } else {
+                                    failed.incrementAndGet();
+                                }
+                                inFlight.release();
+                            });
+                }
+            }
+        }
+        inFlight.acquire(MAX_IN_FLIGHT);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Replayed %d batches (%d bytes) from %d files in %.1f s, %d failed%n",
+                sent.get(), bytes, files.size(), seconds, failed.get());
+    }
+
+    // Fills the buffer, returns false when the end of the file is reached first
+    private static boolean read(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,354 @@
+package com.pej.otel.springotellab;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The {@code tracing.*} settings of application.properties, described there. The defaults below apply when a
+ * setting is left out.
+ */
+@ConfigurationProperties("tracing")
+public class TracingProperties {
+
+    private static final String TMPDIR = System.getProperty("java.io.tmpdir");
+
+    private int maxSpansPerTrace = 1000;
+
+    private int maxTrackedTraces = 10000;
+
+    private double tracesPerSecond = 100;
+
+    // head or tail
+    private String sampling = "head";
+
+    // batch or sharded
+    private String processor = "batch";
+
+    private final Tail tail = new Tail();
+
+    private final Export export = new Export();
+
+    private final Wal wal = new Wal();
+
+    private final Capture capture = new Capture();
+
+    private final Sharded sharded = new Sharded();
+
+    public int getMaxSpansPerTrace() {
+        return maxSpansPerTrace;
+    }
+
+    public void setMaxSpansPerTrace(int maxSpansPerTrace) {
+        this.maxSpansPerTrace = maxSpansPerTrace;
+    }
+
+    public int getMaxTrackedTraces() {
+        return maxTrackedTraces;
+    }
+
+    public void setMaxTrackedTraces(int maxTrackedTraces) {
+        this.maxTrackedTraces = maxTrackedTraces;
+    }
+
+    public double getTracesPerSecond() {
+        return tracesPerSecond;
+    }
+
+    public void setTracesPerSecond(double tracesPerSecond) {
+        this.tracesPerSecond = tracesPerSecond;
+    }
+
+    public String getSampling() {
+        return sampling;
+    }
+
+    public void setSampling(String sampling) {
+        this.sampling = sampling;
+    }
+
+    public String getProcessor() {
+        return processor;
+    }
+
+    public void setProcessor(String processor) {
+        this.processor = processor;
+    }
+
+    public Tail getTail() {
+        return tail;
+    }
+
+    public Export getExport() {
+        return export;
+    }
+
+    public Wal getWal() {
+        return wal;
+    }
+
+    public Capture getCapture() {
+        return capture;
+    }
+
+    public Sharded getSharded() {
+        return sharded;
+    }
+
+    public static class Tail {
+
+        // Milliseconds
+        private long latencyThreshold = 500;
+
+        private double keepRatio = 0.01;
+
+        private int maxBufferedSpans = 100000;
+
+        // Milliseconds
+        private long maxTraceDuration = 30000;
+
+        private int maxDecidedTraces = 10000;
+
+        public long getLatencyThreshold() {
+            return latencyThreshold;
+        }
+
+        public void setLatencyThreshold(long latencyThreshold) {
+            this.latencyThreshold = latencyThreshold;
+        }
+
+        public double getKeepRatio() {
+            return keepRatio;
+        }
+
+        public void setKeepRatio(double keepRatio) {
+            this.keepRatio = keepRatio;
+        }
+
+        public int getMaxBufferedSpans() {
+            return maxBufferedSpans;
+        }
+
+        public void setMaxBufferedSpans(int maxBufferedSpans) {
+            this.maxBufferedSpans = maxBufferedSpans;
+        }
+
+        public long getMaxTraceDuration() {
+            return maxTraceDuration;
+        }
+
+        public void setMaxTraceDuration(long maxTraceDuration) {
+            this.maxTraceDuration = maxTraceDuration;
+        }
+
+        public int getMaxDecidedTraces() {
+            return maxDecidedTraces;
+        }
+
+        public void setMaxDecidedTraces(int maxDecidedTraces) {
+            this.maxDecidedTraces = maxDecidedTraces;
+        }
+    }
+
+    public static class Export {
+
+        private boolean measureBytes;
+
+        // grpc, direct-http or shared-memory
+        private String protocol = "grpc";
+
+        private String endpoint = "http://localhost:4318/v1/traces";
+
+        private int bufferSize = 4194304;
+
+        private int pooledBuffers = 4;
+
+        private String ringFile = TMPDIR + "/springotel-spans.ring";
+
+        private int ringSize = 67108864;
+
+        public boolean isMeasureBytes() {
+            return measureBytes;
+        }
+
+        public void setMeasureBytes(boolean measureBytes) {
+            this.measureBytes = measureBytes;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public void setProtocol(String protocol) {
+            this.protocol = protocol;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public void setEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public int getPooledBuffers() {
+            return pooledBuffers;
+        }
+
+        public void setPooledBuffers(int pooledBuffers) {
+            this.pooledBuffers = pooledBuffers;
+        }
+
+        public String getRingFile() {
+            return ringFile;
+        }
+
+        public void setRingFile(String ringFile) {
+            this.ringFile = ringFile;
+        }
+
+        public int getRingSize() {
+            return ringSize;
+        }
+
+        public void setRingSize(int ringSize) {
+            this.ringSize = ringSize;
+        }
+    }
+
+    public static class Wal {
+
+        private boolean enabled;
+
+        private String directory = TMPDIR + "/springotel-wal";
+
+        private int segmentSize = 16777216;
+
+        private int maxSegments = 8;
+
+        private String replayEndpoint = "http://localhost:4318/v1/traces";
+
+        private long maxReplayBytesPerSecond = 1048576;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public int getMaxSegments() {
+            return maxSegments;
+        }
+
+        public void setMaxSegments(int maxSegments) {
+            this.maxSegments = maxSegments;
+        }
+
+        public String getReplayEndpoint() {
+            return replayEndpoint;
+        }
+
+        public void setReplayEndpoint(String replayEndpoint) {
+            this.replayEndpoint = replayEndpoint;
+        }
+
+        public long getMaxReplayBytesPerSecond() {
+            return maxReplayBytesPerSecond;
+        }
+
+        public void setMaxReplayBytesPerSecond(long maxReplayBytesPerSecond) {
+            this.maxReplayBytesPerSecond = maxReplayBytesPerSecond;
+        }
+    }
+
+    public static class Capture {
+
+        private boolean enabled;
+
+        private String directory = TMPDIR + "/springotel-capture";
+
+        private long maxFileSize = 67108864;
+
+        private int maxFiles = 16;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public long getMaxFileSize() {
+            return maxFileSize;
+        }
+
+        public void setMaxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+        }
+
+        public int getMaxFiles() {
+            return maxFiles;
+        }
+
+        public void setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+        }
+    }
+
+    public static class Sharded {
+
+        // 0: one shard per core
+        private int shards;
+
+        private int queueSizePerShard = 2048;
+
+        public int getShards() {
+            return shards;
+        }
+
+        public void setShards(int shards) {
+            this.shards = shards;
+        }
+
+        public int getQueueSizePerShard() {
+            return queueSizePerShard;
+        }
+
+        public void setQueueSizePerShard(int queueSizePerShard) {
+            this.queueSizePerShard = queueSizePerShard;
+        }
+    }
+}
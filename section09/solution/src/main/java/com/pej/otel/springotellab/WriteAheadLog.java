@@ -0,0 +1,188 @@
+package com.pej.otel.springotellab;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Queue of records kept in memory-mapped segment files of {@code segmentSize} bytes, at most {@code maxSegments}
+ * of them. Each record is written as its length followed by its bytes. The length is written last, so a record
+ * interrupted by a crash is ignored, and it is negated once the record is consumed, so the queue resumes where it
+ * stopped when the application restarts. The fully consumed segments are deleted.
+ *
+ * Appending, peeking and removing are synchronized, they are only memory copies.
+ */
+public class WriteAheadLog {
+
+    private static final String SUFFIX = ".wal";
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private long nextSegmentId;
+
+    public WriteAheadLog(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> paths = Files.list(directory)) {
+            files = paths.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            Segment segment = new Segment(file, (int) Files.size(file));
+            segment.recover();
+            segments.addLast(segment);
+            nextSegmentId = Math.max(nextSegmentId, segmentId(file) + 1);
+        }
+        // Keeps the last segment to append to it
+        while (segments.size() > 1 && segments.peekFirst().isConsumed()) {
+            Files.deleteIfExists(segments.removeFirst().path);
+        }
+    }
+
+    // Returns false when the record does not fit in the remaining segments
+    public synchronized boolean append(byte[] record) throws IOException {
+        if (Integer.BYTES + record.length > segmentSize) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.hasRoom(record.length)) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            tail = new Segment(directory.resolve(String.format("%020d%s", nextSegmentId++, SUFFIX)), segmentSize);
+            segments.addLast(tail);
+        }
+        tail.write(record);
+        return true;
+    }
+
+    // Returns the oldest record not consumed yet, or null when there is none
+    public synchronized byte[] peek() throws IOException {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return null;
+            }
+            byte[] record = head.read();
+            if (record != null || head == segments.peekLast()) {
+                return record;
+            }
+            Files.deleteIfExists(segments.removeFirst().path);
+        }
+    }
+
+    // Marks the record returned by peek() as consumed
+    public synchronized void remove() {
+        Segment head = segments.peekFirst();
+        if (head != null) {
+            head.markConsumed();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isConsumed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+
+        private final MappedByteBuffer buffer;
+
+        private int readPosition;
+
+        private int writePosition;
+
+        Segment(Path path, int size) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping stays valid once the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        // Finds the first record not consumed and the end of the written records
+        void recover() {
+            int position = 0;
+            int firstUnconsumed = -1;
+            while (position + Integer.BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length > 0 && firstUnconsumed < 0) {
+                    firstUnconsumed = position;
+                }
+                position += Integer.BYTES + Math.abs(length);
+            }
+            writePosition = position;
+            readPosition = firstUnconsumed < 0 ? position : firstUnconsumed;
+        }
+
+        boolean hasRoom(int length) {
+            return writePosition + Integer.BYTES + length <= buffer.capacity();
+        }
+
+        void write(byte[] record) {
+            int end = writePosition + Integer.BYTES + record.length;
+            buffer.put(writePosition + Integer.BYTES, record);
+            // Ends the records in case bytes of a record interrupted by a crash follow
+            if (end + Integer.BYTES <= buffer.capacity()) {
+                buffer.putInt(end, 0);
+            }
+            buffer.putInt(writePosition, record.length);
+            writePosition = end;
+        }
+
+        byte[] read() {
+            if (readPosition >= writePosition) {
+                return null;
+            }
+            byte[] record = new byte[buffer.getInt(readPosition)];
+            buffer.get(readPosition + Integer.BYTES, record);
+            return record;
+        }
+
+        void markConsumed() {
+            if (readPosition < writePosition) {
+                int length = buffer.getInt(readPosition);
+                buffer.putInt(readPosition, -length);
+                readPosition += Integer.BYTES + length;
+            }
+        }
+
+        boolean isConsumed() {
+            return readPosition >= writePosition;
+        }
+    }
+}
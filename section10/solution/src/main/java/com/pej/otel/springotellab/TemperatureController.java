@@ -50,7 +50,7 @@ public class TemperatureController {
             }
             return result;
         } catch (Throwable t) {
-            span.recordException(t);
+            ExceptionRecorder.record(span, t);
             throw t;
         } finally {
             span.end();
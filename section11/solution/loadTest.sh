@@ -0,0 +1,24 @@
+#!/bin/bash
+
+# Sends REQUESTS requests to /simulateTemperature with CONCURRENCY requests in flight.
+# Run it once with --simulation.executor=fixed and once with --simulation.executor=virtual to compare both executors.
+REQUESTS=${1:-200}
+CONCURRENCY=${2:-32}
+MEASUREMENTS=${3:-10000}
+
+echo "Sending $REQUESTS requests ($CONCURRENCY concurrent, $MEASUREMENTS measurements each)..."
+
+start=$(date +%s.%N)
+seq $REQUESTS | xargs -P $CONCURRENCY -I{} curl -s -o /dev/null -w "%{http_code} %{time_total}\n" "localhost:8080/simulateTemperature?measurements=$MEASUREMENTS" > loadTest.out
+end=$(date +%s.%N)
+
+sort -k2 -n loadTest.out | awk -v start=$start -v end=$end '
+    { codes[$1]++; times[NR] = $2; total += $2 }
+    END {
+        elapsed = end - start
+        for (code in codes) printf "HTTP %s: %d\n", code, codes[code]
+        printf "Elapsed: %.2fs, throughput: %.1f req/s\n", elapsed, NR / elapsed
+        printf "Latency avg: %.3fs, p50: %.3fs, p99: %.3fs, max: %.3fs\n", total / NR, times[int(NR * 0.5) + 1], times[int(NR * 0.99) + 1], times[NR]
+    }'
+
+rm loadTest.out
@@ -0,0 +1,207 @@
+package com.pej.otel.springotellab;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of tracing {@link Thermometer#simulateTemperature(int)}.
+ *
+ * <ul>
+ *   <li>{@code none}: the same loop without any span (baseline)</li>
+ *   <li>{@code noop}: the Thermometer wired with {@link OpenTelemetry#noop()}</li>
+ *   <li>{@code sdk}: the Thermometer wired with an SDK using a {@link BatchSpanProcessor} and a stub exporter</li>
+ * </ul>
+ *
+ * The queue of the batch processor holds the spans of one call per benchmark thread, at least the default 2048:
+ * with the default queue, most of the spans of a call with 10k measurements would be dropped instead of exported.
+ * Like in SpanProcessorBenchmark, each run also reports {@code exportedSpans} and {@code droppedSpans} per second,
+ * the dropped spans showing when the export thread does not keep up. The {@code AllCores} variant runs one thread
+ * per core: divide its score by the number of cores to get the throughput per core.
+ *
+ * Run with {@code gradle jmh}, results are written as JSON in {@code build/results/jmh/results.json}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThermometerBenchmark {
+
+    private static final AttributeKey<Boolean> DROPPED = AttributeKey.booleanKey("dropped");
+
+    @Param({"none", "noop", "sdk"})
+    public String tracing;
+
+    @Param({"1", "100", "10000", "100000"})
+    public int measurements;
+
+    private final StubSpanExporter spanExporter = new StubSpanExporter();
+
+    private InMemoryMetricReader metricReader;
+
+    private SdkMeterProvider sdkMeterProvider;
+
+    private SdkTracerProvider sdkTracerProvider;
+
+    private Thermometer thermometer;
+
+    private long exportedBefore;
+
+    private long iteration;
+
+    private long collectedIteration;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        OpenTelemetry openTelemetry = OpenTelemetry.noop();
+        if ("sdk".equals(tracing)) {
+            // Delta temporality, each collection returns the spans dropped since the previous one
+            metricReader = InMemoryMetricReader.createDelta();
+            sdkMeterProvider = SdkMeterProvider.builder().registerMetricReader(metricReader).build();
+            // The measureOnce spans and the parent span
+            int spansPerCall = measurements + 1;
+            sdkTracerProvider = SdkTracerProvider.builder()
+                    .addSpanProcessor(BatchSpanProcessor.builder(spanExporter)
+                            .setScheduleDelay(100, TimeUnit.MILLISECONDS)
+                            .setMaxQueueSize(Math.max(params.getThreads() * spansPerCall, 2048))
+                            .setMeterProvider(sdkMeterProvider)
+                            .build())
+                    .build();
+            openTelemetry = OpenTelemetrySdk.builder().setTracerProvider(sdkTracerProvider).build();
+        }
+        thermometer = new Thermometer(openTelemetry);
+        thermometer.setTemp(20, 35);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (sdkTracerProvider != null) {
+            sdkTracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+            sdkMeterProvider.shutdown().join(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void nextIteration() {
+        iteration++;
+    }
+
+    // Called by every thread at the end of the iteration: only the first one gets the counts, so the sum over the
+    // threads is the total
+    synchronized void collect(SpanCounts counts) {
+        counts.exportedSpans = 0;
+        counts.droppedSpans = 0;
+        if (sdkTracerProvider == null || collectedIteration == iteration) {
+            return;
+        }
+        collectedIteration = iteration;
+
+        sdkTracerProvider.forceFlush().join(10, TimeUnit.SECONDS);
+        long exported = spanExporter.exported.get();
+        counts.exportedSpans = exported - exportedBefore;
+        exportedBefore = exported;
+        for (MetricData metric : metricReader.collectAllMetrics()) {
+            if (metric.getName().equals("processedSpans")) {
+                // BatchSpanProcessor counts the spans it dropped with dropped=true
+                for (LongPointData point : metric.getLongSumData().getPoints()) {
+                    if (Boolean.TRUE.equals(point.getAttributes().get(DROPPED))) {
+                        counts.droppedSpans += point.getValue();
+                    }
+                }
+            }
+        }
+    }
+
+    // Reported per second next to the calls
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class SpanCounts {
+
+        public long exportedSpans;
+
+        public long droppedSpans;
+
+        @TearDown(Level.Iteration)
+        public void collect(ThermometerBenchmark benchmark) {
+            benchmark.collect(this);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> simulateTemperature(SpanCounts counts) {
+        if ("none".equals(tracing)) {
+            return untracedSimulation(measurements);
+        }
+        return thermometer.simulateTemperature(measurements);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<Integer> simulateTemperatureAllCores(SpanCounts counts) {
+        return simulateTemperature(counts);
+    }
+
+    private static List<Integer> untracedSimulation(int measurements) {
+        List<Integer> temperatures = new ArrayList<Integer>();
+        for (int i = 0; i < measurements; i++) {
+            temperatures.add(ThreadLocalRandom.current().nextInt(20, 36));
+        }
+        return temperatures;
+    }
+
+    // Accepts every batch so that only the SDK side of the pipeline is measured, counts the exported spans
+    static class StubSpanExporter implements SpanExporter {
+
+        private final AtomicLong exported = new AtomicLong();
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            exported.addAndGet(spans.size());
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
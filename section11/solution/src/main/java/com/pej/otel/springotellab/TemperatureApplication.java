@@ -1,17 +1,21 @@
 package com.pej.otel.springotellab;
 
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.exporter.otlp.trace.OtlpGrpcSpanExporter;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
 import io.opentelemetry.semconv.ResourceAttributes;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.Banner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
@@ -24,6 +28,17 @@ public class TemperatureApplication {
     }
 
 
+    // "fixed" runs the simulations on a pool of simulation.poolSize threads, "virtual" starts a virtual thread per simulation (Java 21+)
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService simulationExecutor(@Value("${simulation.executor:fixed}") String executor,
+                                              @Value("${simulation.poolSize:4}") int poolSize) {
+        ExecutorService executorService = "virtual".equals(executor)
+                ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(poolSize);
+        return Context.taskWrapping(executorService);
+    }
+
+
     @Bean
     public OpenTelemetry openTelemetry() {
 
@@ -8,36 +8,54 @@ import io.opentelemetry.context.Scope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 @RestController
 public class TemperatureController {
     private static final Logger logger = LoggerFactory.getLogger(TemperatureController.class);
     private final Tracer tracer;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+    // Already decorated with Context.taskWrapping(), see TemperatureApplication.simulationExecutor()
+    private final ExecutorService executorService;
 
     @Autowired
-    TemperatureController(OpenTelemetry openTelemetry) {
+    TemperatureController(OpenTelemetry openTelemetry, ExecutorService simulationExecutor) {
         this.tracer = openTelemetry.getTracer(TemperatureController.class.getName(), "0.1.0");
+        this.executorService = simulationExecutor;
     }
 
     @Autowired
     Thermometer thermometer;
 
+    // Same property as TemperatureApplication.simulationExecutor(), the sub-tasks only run on virtual threads
+    @Value("${simulation.executor:fixed}")
+    private String executor;
+
+    // Number of sub-tasks a simulation is split into with simulation.executor=virtual
+    @Value("${simulation.subTasks:1}")
+    private int subTasks;
+
+    // The servlet thread is released as soon as the task is submitted, Spring MVC writes the response once the future completes.
+    // The temperatureSimulation span is therefore ended on completion and not when this method returns.
     @GetMapping("/simulateTemperature")
-    public List<Integer> index(@RequestParam("location") Optional<String> location,
-                               @RequestParam("measurements") Optional<Integer> measurements) throws Exception {
+    public CompletableFuture<List<Integer>> index(@RequestParam("location") Optional<String> location,
+                                                  @RequestParam("measurements") Optional<Integer> measurements) {
 
         Span span = tracer.spanBuilder("temperatureSimulation").startSpan();
         try (Scope scope = span.makeCurrent()) {
@@ -46,36 +64,74 @@ public class TemperatureController {
                 throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing measurements parameter", null);
             }
 
-            ExecutorService wrappedExecutorService = Context.taskWrapping(executorService);
-
             Callable<List<Integer>> task = () -> {
                 Span newSpan = tracer.spanBuilder("asyncTemperatureSimulation").startSpan();
                 try (Scope newScope = newSpan.makeCurrent()) {
                     // Now 'newSpan' is the current span, and its context is active.
                     // Any spans created in this block will have 'newSpan' as their parent, which in turn has 'parentSpan' as its parent.
                     thermometer.setTemp(20, 35);
+                    if (subTasks > 1 && "virtual".equals(executor)) {
+                        return simulateInSubTasks(measurements.get());
+                    }
                     return thermometer.simulateTemperature(measurements.get());
                 } finally {
                     newSpan.end(); // Ensure to end 'newSpan' after its work is done
                 }
             };
 
+            CompletableFuture<List<Integer>> futureResult = new CompletableFuture<>();
+            executorService.execute(() -> {
+                try {
+                    futureResult.complete(task.call());
+                } catch (Throwable t) {
+                    futureResult.completeExceptionally(t);
+                }
+            });
 
-            Future<List<Integer>> futureResult = wrappedExecutorService.submit(task);
-            List<Integer> result = futureResult.get(); // This blocks until the task is completed and retrieves the result
-
-            // Use the result as needed
-            if (location.isPresent()) {
-                logger.info("Temperature simulation for {}: {}", location.get(), result);
-            } else {
-                logger.info("Temperature simulation for an unspecified location: {}", result);
-            }
-            return result; // Return the result from the method
+            return futureResult.whenComplete((result, t) -> {
+                if (t != null) {
+                    ExceptionRecorder.record(span, t);
+                } else if (location.isPresent()) {
+                    logger.info("Temperature simulation for {}: {}", location.get(), result);
+                } else {
+                    logger.info("Temperature simulation for an unspecified location: {}", result);
+                }
+                span.end();
+            });
         } catch (Throwable t) {
-            span.recordException(t);
+            ExceptionRecorder.record(span, t);
+            span.end();
             throw t;
+        }
+    }
+
+    // Fans the simulation out to one virtual thread per sub-task. The executor is scoped to this call in the spirit of
+    // StructuredTaskScope.ShutdownOnFailure (still a preview API): the first failure cancels the remaining sub-tasks.
+    private List<Integer> simulateInSubTasks(int measurements) throws Exception {
+        int count = Math.min(subTasks, Math.max(measurements, 1));
+        ExecutorService scope = Context.taskWrapping(VirtualThreads.newVirtualThreadPerTaskExecutor());
+        try {
+            CompletionService<List<Integer>> completionService = new ExecutorCompletionService<>(scope);
+            Map<Future<List<Integer>>, Integer> indexes = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int size = measurements / count + (i < measurements % count ? 1 : 0);
+                indexes.put(completionService.submit(() -> thermometer.simulateTemperature(size)), i);
+            }
+
+            List<List<Integer>> parts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                parts.add(null);
+            }
+            for (int i = 0; i < count; i++) {
+                Future<List<Integer>> done = completionService.take();
+                parts.set(indexes.get(done), done.get());
+            }
+
+            List<Integer> result = new ArrayList<>(Math.max(measurements, 0));
+            parts.forEach(result::addAll);
+            return result;
         } finally {
-            span.end();
+            scope.shutdownNow();
         }
     }
 }
@@ -0,0 +1,38 @@
+package com.pej.otel.springotellab;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives access to {@code Executors.newVirtualThreadPerTaskExecutor()} while the project is still compiled for Java 17.
+ * Virtual threads are only available when the application runs on Java 21 or above.
+ */
+final class VirtualThreads {
+
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+            throw new IllegalStateException("Virtual threads require Java 21 or above, running on " + Runtime.version());
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Unable to create a virtual thread executor", t);
+        }
+    }
+
+    private static MethodHandle lookup() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}